@@ -0,0 +1,181 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Applies a cascade classifier to a sequence of frames while trying to keep the time
+ * taken per frame within a budget. Most of the cost of detectMultiScale comes from
+ * the number of scales searched, so when recent frames have gone over budget the
+ * scale factor is increased (fewer, coarser scales) and the minimum object size is
+ * raised (skipping the smallest and most numerous windows), though never beyond the
+ * maximum object size if one is set. When there is plenty of time to spare the
+ * parameters are relaxed back towards the ones supplied.
+ */
+public class AdaptiveDetector {
+    public static final int DEFAULT_WINDOW = 5;
+
+    public static final double MAX_SCALE_FACTOR = 1.5;
+
+    /**
+     * Multiplier applied to (scaleFactor - 1) and minSize on each adjustment
+     */
+    private static final double STEP = 1.25;
+
+    /**
+     * Fraction of the budget below which the parameters are relaxed
+     */
+    private static final double RELAX_THRESHOLD = 0.6;
+
+    private final CascadeClassifier classifier;
+
+    private final double budgetMillis;
+
+    private final DetectionParameters finest;
+
+    private final int window;
+
+    private final Deque<Double> recentMillis = new ArrayDeque<>();
+
+    private DetectionParameters current;
+
+    private long numFrames;
+
+    private long numOverBudget;
+
+    private double totalMillis;
+
+    /**
+     * @param classifier
+     * @param budgetMillis target time per frame
+     * @param finest       most thorough parameters to use when there is time for them
+     * @param window       number of recent frames to average over before adjusting
+     */
+    public AdaptiveDetector(CascadeClassifier classifier, double budgetMillis, DetectionParameters finest, int window) {
+        this.classifier = classifier;
+        this.budgetMillis = budgetMillis;
+        this.finest = finest;
+        this.window = window;
+        this.current = finest;
+    }
+
+    public AdaptiveDetector(CascadeClassifier classifier, double budgetMillis) {
+        this(classifier, budgetMillis, DetectionParameters.DEFAULTS, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Detect objects in a grayscale frame using the current parameters, then use the
+     * time taken to adjust the parameters for the following frames
+     *
+     * @param gray
+     * @return
+     */
+    public List<Rect> detect(Mat gray) {
+        final long start = System.nanoTime();
+        final List<Rect> result = ImageOps.applyClassifier(classifier, gray, current);
+        final double millis = (System.nanoTime() - start) / 1e6;
+
+        ++numFrames;
+        totalMillis += millis;
+        if (millis > budgetMillis) {
+            ++numOverBudget;
+        }
+
+        recentMillis.addLast(millis);
+        if (recentMillis.size() > window) {
+            recentMillis.removeFirst();
+        }
+        adjust(gray.size());
+        return result;
+    }
+
+    private void adjust(Size imageSize) {
+        if (recentMillis.size() < window) {
+            return;
+        }
+        final double average = recentMillis.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+
+        DetectionParameters next = current;
+        if (average > budgetMillis) {
+            next = coarser(imageSize);
+        } else if (average < RELAX_THRESHOLD * budgetMillis) {
+            next = finer();
+        }
+
+        if (next != current) {
+            current = next;
+            // timings for the old parameters no longer tell us anything
+            recentMillis.clear();
+        }
+    }
+
+    private DetectionParameters coarser(Size imageSize) {
+        final double scaleFactor = current.getScaleFactor();
+        if (scaleFactor < MAX_SCALE_FACTOR) {
+            return current.withScaleFactor(Math.min(MAX_SCALE_FACTOR, 1 + (scaleFactor - 1) * STEP));
+        }
+
+        // objects bigger than half the image are not worth detecting quickly and if
+        // minSize passed maxSize no scales would be searched at all
+        double largestWidth = Math.min(imageSize.width, imageSize.height) / 2;
+        double largestHeight = largestWidth;
+        final Size maxSize = current.getMaxSize();
+        if (maxSize.area() > 0) {
+            largestWidth = Math.min(largestWidth, maxSize.width);
+            largestHeight = Math.min(largestHeight, maxSize.height);
+        }
+        Size minSize = current.getMinSize();
+        if (minSize.area() <= 0) {
+            minSize = classifier.getOriginalWindowSize();
+        }
+        final Size larger = new Size(Math.round(minSize.width * STEP), Math.round(minSize.height * STEP));
+        if (larger.width > largestWidth || larger.height > largestHeight) {
+            return current;
+        }
+        return current.withMinSize(larger);
+    }
+
+    private DetectionParameters finer() {
+        final Size minSize = current.getMinSize();
+        final Size finestMinSize = finest.getMinSize();
+        if (minSize.area() > finestMinSize.area()) {
+            final Size smaller = new Size(Math.round(minSize.width / STEP), Math.round(minSize.height / STEP));
+            if (smaller.area() <= classifier.getOriginalWindowSize().area() || smaller.area() <= finestMinSize.area()) {
+                return current.withMinSize(finestMinSize);
+            }
+            return current.withMinSize(smaller);
+        }
+
+        final double scaleFactor = current.getScaleFactor();
+        if (scaleFactor > finest.getScaleFactor()) {
+            return current.withScaleFactor(Math.max(finest.getScaleFactor(), 1 + (scaleFactor - 1) / STEP));
+        }
+        return current;
+    }
+
+    public DetectionParameters getCurrentParameters() {
+        return current;
+    }
+
+    public long getNumFrames() {
+        return numFrames;
+    }
+
+    public double getMeanMillis() {
+        return (0 == numFrames) ? 0.0 : totalMillis / numFrames;
+    }
+
+    /**
+     * Fraction of frames which took longer than the budget
+     */
+    public double getOverBudgetRatio() {
+        return (0 == numFrames) ? 0.0 : ((double) numOverBudget) / numFrames;
+    }
+}
@@ -0,0 +1,249 @@
+package com.davesnowdon.ifp;
+
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Runs one of Main's commands over a large set of images using several worker
+ * processes, possibly on different machines, which share a directory holding a
+ * WorkQueue.
+ *
+ * The coordinator splits a listing of images (one filename per line) into units,
+ * adds them to the queue and then waits for them to be processed, requeueing the
+ * units of any worker which stops sending heartbeats:
+ *
+ *   BatchRunner coordinate --queue DIR --list FILE [--unit-size N]
+ *
+ * Each worker claims units until every unit is done, writing one line per image to
+ * results/UNIT and any output images to results/UNIT.out/, prefixed with the image's
+ * position in the unit since images from different directories may share a name.
+ * Workers may be started before the coordinator, they wait until it has queued all
+ * the work:
+ *
+ *   BatchRunner worker --queue DIR --command COMMAND [Main options] [--workers N --cv-threads M]
+ */
+public class BatchRunner {
+    public static final String OPTION_QUEUE = "queue";
+
+    public static final String OPTION_LIST = "list";
+
+    public static final String OPTION_UNIT_SIZE = "unit-size";
+
+    public static final String OPTION_HEARTBEAT_TIMEOUT = "heartbeat-timeout";
+
+    public static final String OPTION_WORKERS = "workers";
+
+    public static final String OPTION_CV_THREADS = "cv-threads";
+
+    public static final int DEFAULT_UNIT_SIZE = 10;
+
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 30000;
+
+    public static final long POLL_MILLIS = 1000;
+
+    public static void main(String[] argv) throws IOException, InterruptedException, ExecutionException {
+        final Options options = Main.createOptions();
+        options.addOption("q", OPTION_QUEUE, true, "Directory holding the work queue");
+        options.addOption("L", OPTION_LIST, true, "File listing the images to process, one per line");
+        options.addOption("u", OPTION_UNIT_SIZE, true, "Number of images per unit of work (default " + DEFAULT_UNIT_SIZE + ")");
+        options.addOption("T", OPTION_HEARTBEAT_TIMEOUT, true, "Milliseconds without a heartbeat before a worker is presumed dead");
+        options.addOption("w", OPTION_WORKERS, true, "Number of java worker threads per process");
+        options.addOption("j", OPTION_CV_THREADS, true, "Number of OpenCV threads per process");
+
+        try {
+            final CommandLine line = new DefaultParser().parse(options, argv);
+            if ((1 != line.getArgs().length) || !line.hasOption(OPTION_QUEUE)) {
+                throw new ParseException("Must specify coordinate or worker and the queue directory");
+            }
+            final WorkQueue queue = new WorkQueue(Paths.get(line.getOptionValue(OPTION_QUEUE)));
+            final long timeout = Long.parseLong(line.getOptionValue(OPTION_HEARTBEAT_TIMEOUT,
+                    Long.toString(DEFAULT_HEARTBEAT_TIMEOUT_MILLIS)));
+
+            switch (line.getArgs()[0]) {
+                case "coordinate":
+                    coordinate(queue, line, timeout);
+                    break;
+
+                case "worker":
+                    work(queue, line, timeout);
+                    break;
+
+                default:
+                    throw new ParseException("Unknown mode: " + line.getArgs()[0]);
+            }
+        } catch (ParseException e) {
+            System.err.println("Failed to parse arguments  Reason: " + e.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("BatchRunner coordinate|worker", options);
+        }
+    }
+
+    /**
+     * Split the image listing into units, queue them and wait for them all to be done
+     */
+    private static void coordinate(WorkQueue queue, CommandLine line, long timeout)
+            throws ParseException, IOException, InterruptedException {
+        if (!line.hasOption(OPTION_LIST)) {
+            throw new ParseException("Must specify the list of images to process");
+        }
+        final int unitSize = Integer.parseInt(line.getOptionValue(OPTION_UNIT_SIZE, Integer.toString(DEFAULT_UNIT_SIZE)));
+        final List<String> images = Files.readAllLines(Paths.get(line.getOptionValue(OPTION_LIST))).stream()
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+
+        queue.create();
+        final List<String> units = new ArrayList<>();
+        for (int start = 0; start < images.size(); start += unitSize) {
+            final String unit = String.format("unit-%06d", units.size());
+            queue.submit(unit, images.subList(start, Math.min(images.size(), start + unitSize)));
+            units.add(unit);
+        }
+        // workers keep waiting for work until the queue is sealed
+        queue.seal(units);
+        System.out.println("Queued " + images.size() + " images in " + units.size() + " units");
+
+        while (!queue.isFinished()) {
+            Thread.sleep(POLL_MILLIS);
+            final int requeued = queue.requeueAbandoned(timeout);
+            if (requeued > 0) {
+                System.out.println("Requeued " + requeued + " units from dead workers");
+            }
+            System.out.println("pending = " + queue.numPending() + ", claimed = " + queue.numClaimed()
+                    + ", done = " + queue.numDone() + " of " + queue.numSubmitted());
+        }
+        System.out.println("All units done, results in " + queue.getRoot().resolve(WorkQueue.RESULTS));
+    }
+
+    /**
+     * Claim and process units until there are none left. Dead workers are checked for
+     * here too so that the queue keeps moving even if the coordinator has gone away.
+     */
+    private static void work(WorkQueue queue, CommandLine line, long timeout)
+            throws ParseException, IOException, InterruptedException, ExecutionException {
+        final String command = line.getOptionValue(Main.OPTION_COMMAND, "");
+        if (!Main.commands.contains(command) || "stream".equals(command)) {
+            throw new ParseException("Must specify a valid single image command");
+        }
+        final String worker = workerId();
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        queue.create();
+        queue.heartbeat(worker);
+        final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> {
+            try {
+                queue.heartbeat(worker);
+            } catch (IOException e) {
+                System.err.println("Failed to write heartbeat: " + e.getMessage());
+            }
+        }, timeout / 3, timeout / 3, TimeUnit.MILLISECONDS);
+
+        try {
+            System.out.println("Worker " + worker + " started");
+            boolean waiting = false;
+            while (!queue.isFinished()) {
+                queue.requeueAbandoned(timeout);
+                final Optional<Path> unit = queue.claim(worker);
+                if (!unit.isPresent()) {
+                    // either the coordinator hasn't submitted everything yet or everything
+                    // is claimed, in which case wait in case another worker dies
+                    if (!queue.isSealed() && !waiting) {
+                        System.out.println("Waiting for the coordinator to queue work");
+                        waiting = true;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+
+                final List<String> images = Files.readAllLines(unit.get());
+                final ExecutionScheduler scheduler = scheduler(images, command, line);
+                final Path outputDir = queue.getRoot().resolve(WorkQueue.RESULTS).resolve(unit.get().getFileName() + ".out");
+                Files.createDirectories(outputDir);
+
+                final List<Integer> indices = IntStream.range(0, images.size()).boxed().collect(Collectors.toList());
+                final List<String> results = scheduler.run(indices,
+                        i -> processImage(images.get(i), command, line, outputDir.resolve(outputName(i, images.get(i)))));
+                if (!queue.complete(unit.get(), results)) {
+                    System.out.println("Unit " + unit.get().getFileName() + " was requeued while being processed");
+                }
+                System.out.println("Finished " + unit.get().getFileName() + " (" + images.size() + " images, " + scheduler + ")");
+            }
+        } finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the command on one image, returning a tab separated result line
+     */
+    private static String processImage(String image, String command, CommandLine line, Path output) {
+        try {
+            final Mat input = Main.readInput(image, command, line);
+            if (input.empty()) {
+                return image + "\terror\tcould not read image";
+            }
+            final Mat result = Main.runCommand(command, input, line);
+            if (null == result) {
+                return image + "\tok\t";
+            }
+            final String outputFilename = output.toString();
+            ImageOps.writeImage(outputFilename, result);
+            return image + "\tok\t" + outputFilename;
+        } catch (Exception e) {
+            return image + "\terror\t" + e.getMessage();
+        }
+    }
+
+    /**
+     * Name of the output image for the image at the given position in a unit
+     */
+    private static String outputName(int index, String image) {
+        return String.format("%04d-%s", index, new File(image).getName());
+    }
+
+    private static ExecutionScheduler scheduler(List<String> images, String command, CommandLine line) {
+        if (line.hasOption(OPTION_WORKERS) || line.hasOption(OPTION_CV_THREADS)) {
+            return new ExecutionScheduler(
+                    Integer.parseInt(line.getOptionValue(OPTION_WORKERS, "1")),
+                    Integer.parseInt(line.getOptionValue(OPTION_CV_THREADS, "1")));
+        }
+        return ExecutionScheduler.automatic(ImageOps.readImageSize(images.get(0)), command);
+    }
+
+    /**
+     * Identify this process uniquely across all the machines sharing the queue
+     */
+    private static String workerId() {
+        // RuntimeMXBean name is pid@hostname
+        final String[] parts = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        return (parts.length == 2) ? parts[1] + "-" + parts[0] : parts[0];
+    }
+}
@@ -0,0 +1,60 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run the adaptive detector over each image repeatedly with a range of latency
+ * budgets, reporting the latency achieved and the recall compared to the objects
+ * found using the default parameters.
+ *
+ * Usage: CascadeBudgetBenchmark [classifier XML] [image,image...]
+ */
+public class CascadeBudgetBenchmark {
+    public static final String DEFAULT_CLASSIFIER = "src/main/resources/nao_cascade.xml";
+
+    public static final String DEFAULT_IMAGES = "src/test/resources/image-with-nao1.jpg,src/test/resources/image-with-nao2.jpg";
+
+    public static final double[] BUDGET_FRACTIONS = {1.0, 0.75, 0.5, 0.25, 0.1};
+
+    public static final int NUM_FRAMES = 40;
+
+    public static void main(String[] argv) {
+        final String classifierFilename = (argv.length > 0) ? argv[0] : DEFAULT_CLASSIFIER;
+        final List<String> images = Arrays.asList(((argv.length > 1) ? argv[1] : DEFAULT_IMAGES).split(","));
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename);
+
+        for (String filename : images) {
+            final Mat gray = ImageOps.toGrayscale(ImageOps.readImage(filename));
+
+            // warm up and establish the reference detections and time
+            ImageOps.applyClassifier(classifier, gray);
+            final long start = System.nanoTime();
+            final List<Rect> expected = ImageOps.applyClassifier(classifier, gray);
+            final double fullMillis = (System.nanoTime() - start) / 1e6;
+            System.out.println(String.format("%s: %d objects in %.2f ms with default parameters",
+                    filename, expected.size(), fullMillis));
+            System.out.println(String.format("  %10s %10s %12s %8s  %s", "budget ms", "mean ms", "over budget", "recall", "final parameters"));
+
+            for (double fraction : BUDGET_FRACTIONS) {
+                final double budget = fullMillis * fraction;
+                final AdaptiveDetector detector = new AdaptiveDetector(classifier, budget);
+                List<Rect> found = expected;
+                for (int i = 0; i < NUM_FRAMES; ++i) {
+                    found = detector.detect(gray);
+                }
+                System.out.println(String.format("  %10.2f %10.2f %12.2f %8.2f  %s",
+                        budget, detector.getMeanMillis(), detector.getOverBudgetRatio(),
+                        ImageOps.recall(expected, found), detector.getCurrentParameters()));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compare the time taken to decode images using the different imread modes against
+ * the default full colour decode followed by toGrayscale, which is what the commands
+ * used to do.
+ *
+ * Usage: DecodeBenchmark [directory of images] [iterations]
+ */
+public class DecodeBenchmark {
+    public static final String DEFAULT_DIRECTORY = "src/test/resources";
+
+    public static final int DEFAULT_ITERATIONS = 50;
+
+    public static void main(String[] argv) {
+        final String directory = (argv.length > 0) ? argv[0] : DEFAULT_DIRECTORY;
+        final int iterations = (argv.length > 1) ? Integer.parseInt(argv[1]) : DEFAULT_ITERATIONS;
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        final Map<String, Integer> modes = new LinkedHashMap<>();
+        modes.put("colour", Imgcodecs.IMREAD_COLOR);
+        modes.put("gray", Imgcodecs.IMREAD_GRAYSCALE);
+        modes.put("colour/2", Imgcodecs.IMREAD_REDUCED_COLOR_2);
+        modes.put("gray/2", Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2);
+        modes.put("colour/4", Imgcodecs.IMREAD_REDUCED_COLOR_4);
+        modes.put("gray/4", Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4);
+        modes.put("colour/8", Imgcodecs.IMREAD_REDUCED_COLOR_8);
+        modes.put("gray/8", Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8);
+
+        final File[] files = new File(directory).listFiles((dir, name) -> name.toLowerCase().endsWith(".jpg"));
+        if (null == files) {
+            System.err.println("Not a directory: " + directory);
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            final String filename = file.getPath();
+            System.out.println(file.getName() + " (" + ImageOps.readImageSize(filename) + ")");
+
+            // baseline is what the commands did before: full colour decode then convert
+            final double baseline = timeMillis(iterations, () -> ImageOps.toGrayscale(ImageOps.readImage(filename)));
+            System.out.println(String.format("  %-12s %8.3f ms", "colour+gray", baseline));
+
+            for (Map.Entry<String, Integer> mode : modes.entrySet()) {
+                final int flags = mode.getValue();
+                final Mat decoded = Imgcodecs.imread(filename, flags);
+                final double millis = timeMillis(iterations, () -> Imgcodecs.imread(filename, flags));
+                System.out.println(String.format("  %-12s %8.3f ms  %4dx%-4d  %.2fx",
+                        mode.getKey(), millis, decoded.cols(), decoded.rows(), baseline / millis));
+            }
+        }
+    }
+
+    private static double timeMillis(int iterations, Runnable action) {
+        // warm up
+        action.run();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            action.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+}
@@ -0,0 +1,89 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Size;
+
+/**
+ * Parameters for CascadeClassifier.detectMultiScale. The defaults are the same as
+ * those used by the two argument version of detectMultiScale. An empty minSize or
+ * maxSize means no limit.
+ */
+public class DetectionParameters {
+    public static final double DEFAULT_SCALE_FACTOR = 1.1;
+
+    public static final int DEFAULT_MIN_NEIGHBORS = 3;
+
+    public static final DetectionParameters DEFAULTS =
+            new DetectionParameters(DEFAULT_SCALE_FACTOR, DEFAULT_MIN_NEIGHBORS, new Size(), new Size());
+
+    private final double scaleFactor;
+
+    private final int minNeighbors;
+
+    private final Size minSize;
+
+    private final Size maxSize;
+
+    /**
+     * @param scaleFactor  how much the image is shrunk at each scale, must be greater than 1
+     * @param minNeighbors how many overlapping detections are needed to keep a match
+     * @param minSize      smallest object size to look for
+     * @param maxSize      largest object size to look for
+     */
+    public DetectionParameters(double scaleFactor, int minNeighbors, Size minSize, Size maxSize) {
+        if (scaleFactor <= 1.0) {
+            throw new IllegalArgumentException("Scale factor must be greater than 1: " + scaleFactor);
+        }
+        this.scaleFactor = scaleFactor;
+        this.minNeighbors = minNeighbors;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public int getMinNeighbors() {
+        return minNeighbors;
+    }
+
+    public Size getMinSize() {
+        return minSize;
+    }
+
+    public Size getMaxSize() {
+        return maxSize;
+    }
+
+    public DetectionParameters withScaleFactor(double newScaleFactor) {
+        return new DetectionParameters(newScaleFactor, minNeighbors, minSize, maxSize);
+    }
+
+    public DetectionParameters withMinSize(Size newMinSize) {
+        return new DetectionParameters(scaleFactor, minNeighbors, newMinSize, maxSize);
+    }
+
+    /**
+     * Parse a size given either as WxH or as a single number for a square
+     *
+     * @param value
+     * @return
+     */
+    public static Size parseSize(String value) {
+        final String[] parts = value.toLowerCase().split("x");
+        if (1 == parts.length) {
+            final double side = Double.parseDouble(parts[0]);
+            return new Size(side, side);
+        } else if (2 == parts.length) {
+            return new Size(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+        }
+        throw new IllegalArgumentException("Size should be <W>x<H> or <N>: " + value);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scaleFactor = %.3f, minNeighbors = %d, minSize = %s, maxSize = %s",
+                scaleFactor, minNeighbors, minSize, maxSize);
+    }
+}
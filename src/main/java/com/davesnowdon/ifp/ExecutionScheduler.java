@@ -0,0 +1,172 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Decides how to split the available cores between OpenCV's own thread pool (used
+ * inside GaussianBlur, cvtColor, detectMultiScale etc) and a pool of java workers
+ * that each process a different image. If both try to use every core they end up
+ * fighting each other, so the product of the two is kept to the number of cores.
+ *
+ * Note that Core.setNumThreads is global to the process, so only one split can be
+ * in effect at a time.
+ */
+public class ExecutionScheduler {
+    /**
+     * Roughly how many pixels each OpenCV thread needs to work on before it is worth
+     * splitting a single image across threads
+     */
+    private static final double CLASSIFIER_PIXELS_PER_THREAD = 500000;
+
+    private static final double FILTER_PIXELS_PER_THREAD = 1000000;
+
+    private final int numWorkers;
+
+    private final int numOpenCvThreads;
+
+    public ExecutionScheduler(int numWorkers, int numOpenCvThreads) {
+        if ((numWorkers < 1) || (numOpenCvThreads < 1)) {
+            throw new IllegalArgumentException("Need at least one worker and one OpenCV thread");
+        }
+        this.numWorkers = numWorkers;
+        this.numOpenCvThreads = numOpenCvThreads;
+    }
+
+    public static int availableCores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Choose a split for a batch of images of roughly the given size. Small images
+     * are best processed one per core with OpenCV single threaded since there is not
+     * enough work in one image to make fanning out worthwhile. Large images on
+     * commands dominated by OpenCV calls get more OpenCV threads and fewer workers.
+     * The number of OpenCV threads is always a divisor of the number of cores so the
+     * result is one of allSplits.
+     * Commands whose time is mostly spent in java (shapes, find-line) always get a
+     * single OpenCV thread.
+     *
+     * @param imageSize
+     * @param command
+     * @return
+     */
+    public static ExecutionScheduler automatic(Size imageSize, String command) {
+        final int cores = availableCores();
+        final double pixels = imageSize.area();
+
+        double pixelsPerThread;
+        switch (command) {
+            case "classifier":
+            case "find-faces":
+            case "stream":
+                pixelsPerThread = CLASSIFIER_PIXELS_PER_THREAD;
+                break;
+
+            case "blur":
+            case "find-blob":
+                pixelsPerThread = FILTER_PIXELS_PER_THREAD;
+                break;
+
+            default:
+                pixelsPerThread = Double.POSITIVE_INFINITY;
+                break;
+        }
+
+        int openCvThreads = (int) Math.max(1, Math.min(cores, Math.ceil(pixels / pixelsPerThread)));
+        // round up to a divisor of the number of cores so that none are left idle
+        while (0 != cores % openCvThreads) {
+            ++openCvThreads;
+        }
+        return new ExecutionScheduler(cores / openCvThreads, openCvThreads);
+    }
+
+    /**
+     * All the possible splits where workers x OpenCV threads equals the number of cores
+     *
+     * @return
+     */
+    public static List<ExecutionScheduler> allSplits() {
+        final int cores = availableCores();
+        final List<ExecutionScheduler> result = new ArrayList<>();
+        for (int workers = 1; workers <= cores; ++workers) {
+            if (0 == (cores % workers)) {
+                result.add(new ExecutionScheduler(workers, cores / workers));
+            }
+        }
+        return result;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public int getNumOpenCvThreads() {
+        return numOpenCvThreads;
+    }
+
+    /**
+     * Set the size of OpenCV's thread pool for this split
+     */
+    public void apply() {
+        Core.setNumThreads(numOpenCvThreads);
+    }
+
+    /**
+     * Apply the task to each of the inputs using this split, returning the results in
+     * the same order as the inputs
+     *
+     * @param inputs
+     * @param task
+     * @return
+     */
+    public <I, R> List<R> run(List<I> inputs, Function<I, R> task) throws InterruptedException, ExecutionException {
+        apply();
+        final ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            final List<Future<R>> futures = new ArrayList<>();
+            for (I input : inputs) {
+                futures.add(executor.submit(() -> task.apply(input)));
+            }
+
+            final List<R> results = new ArrayList<>();
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ExecutionScheduler)) {
+            return false;
+        }
+        final ExecutionScheduler other = (ExecutionScheduler) o;
+        return (numWorkers == other.numWorkers) && (numOpenCvThreads == other.numOpenCvThreads);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * numWorkers + numOpenCvThreads;
+    }
+
+    @Override
+    public String toString() {
+        return numWorkers + " workers x " + numOpenCvThreads + " OpenCV threads";
+    }
+}
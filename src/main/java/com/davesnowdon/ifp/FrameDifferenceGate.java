@@ -0,0 +1,159 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.util.function.Function;
+
+/**
+ * Change detection stage for streams of frames from a static camera. Each frame is
+ * reduced to a small grayscale thumbnail and compared against the thumbnail of the
+ * last frame that was actually processed. If the mean absolute difference is below
+ * the threshold the previous detection result is reused instead of running the
+ * (expensive) detector again. To stop results getting too old, a frame is always
+ * processed once maxStaleness consecutive frames have been skipped.
+ *
+ * Time saved is measured as elapsed time on the thread calling apply. Process CPU
+ * time would also count work done concurrently by other threads (such as a thread
+ * decoding the next frames) and on Linux only advances in 10ms ticks, while the
+ * calling thread's own CPU time would miss the OpenCV threads the detector runs on.
+ *
+ * @param <T> type of the result produced by the detector
+ */
+public class FrameDifferenceGate<T> {
+    public static final int DEFAULT_WIDTH = 64;
+
+    public static final double DEFAULT_THRESHOLD = 2.0;
+
+    public static final int DEFAULT_MAX_STALENESS = 10;
+
+    private final double threshold;
+
+    private final int maxStaleness;
+
+    private final int width;
+
+    private Mat lastThumbnail;
+
+    private T lastResult;
+
+    private int staleCount;
+
+    private long numProcessed;
+
+    private long numSkipped;
+
+    private long detectorNanos;
+
+    private long gateNanos;
+
+    /**
+     * @param threshold    mean absolute difference per pixel (0-255) below which a frame counts as unchanged
+     * @param maxStaleness maximum number of consecutive frames that can reuse a result
+     * @param width        width of the thumbnail used for the comparison
+     */
+    public FrameDifferenceGate(double threshold, int maxStaleness, int width) {
+        this.threshold = threshold;
+        this.maxStaleness = maxStaleness;
+        this.width = width;
+    }
+
+    public FrameDifferenceGate() {
+        this(DEFAULT_THRESHOLD, DEFAULT_MAX_STALENESS, DEFAULT_WIDTH);
+    }
+
+    /**
+     * Return the detection result for a frame, either by running the detector or by
+     * reusing the result for the last processed frame if nothing much has changed
+     *
+     * @param frame
+     * @param detector
+     * @return
+     */
+    public T apply(Mat frame, Function<Mat, T> detector) {
+        final long gateStart = System.nanoTime();
+        final Mat thumbnail = thumbnail(frame);
+        final boolean unchanged = (null != lastThumbnail)
+                && (staleCount < maxStaleness)
+                && lastThumbnail.size().equals(thumbnail.size())
+                && (difference(lastThumbnail, thumbnail) < threshold);
+        gateNanos += System.nanoTime() - gateStart;
+
+        if (unchanged) {
+            ++staleCount;
+            ++numSkipped;
+            return lastResult;
+        }
+
+        final long detectorStart = System.nanoTime();
+        lastResult = detector.apply(frame);
+        detectorNanos += System.nanoTime() - detectorStart;
+        lastThumbnail = thumbnail;
+        staleCount = 0;
+        ++numProcessed;
+        return lastResult;
+    }
+
+    /**
+     * Forget the last processed frame so that the next frame is always processed
+     */
+    public void reset() {
+        lastThumbnail = null;
+        lastResult = null;
+        staleCount = 0;
+    }
+
+    /**
+     * Mean absolute difference between two grayscale images of the same size
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static double difference(Mat a, Mat b) {
+        final Mat diff = ImageOps.resultMatrix(a);
+        Core.absdiff(a, b, diff);
+        return Core.mean(diff).val[0];
+    }
+
+    private Mat thumbnail(Mat frame) {
+        return ImageOps.resizeByWidth(ImageOps.toGrayscale(frame), width);
+    }
+
+    public long getNumProcessed() {
+        return numProcessed;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * Fraction of frames for which the previous result was reused
+     */
+    public double getSkipRatio() {
+        final long total = numProcessed + numSkipped;
+        return (0 == total) ? 0.0 : ((double) numSkipped) / total;
+    }
+
+    /**
+     * Estimated time saved: the average elapsed time of running the detector
+     * multiplied by the number of skipped frames, less the time spent comparing
+     * frames. Elapsed time includes any time lost to other threads competing for the
+     * CPU while the detector or comparison was running.
+     */
+    public long getNanosSaved() {
+        if (0 == numProcessed) {
+            return -gateNanos;
+        }
+        return (detectorNanos / numProcessed) * numSkipped - gateNanos;
+    }
+
+    public String report() {
+        return String.format("frames = %d, processed = %d, skipped = %d, skip ratio = %.2f, time saved = %.1f ms (gate overhead %.1f ms)"
+                        + ", elapsed time including other busy threads",
+                numProcessed + numSkipped, numProcessed, numSkipped, getSkipRatio(),
+                getNanosSaved() / 1e6, gateNanos / 1e6);
+    }
+}
@@ -0,0 +1,267 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity ring of preallocated frames for handing images from a capture
+ * thread to a detection thread without allocating a new Mat for every frame. All
+ * frames have the same size and type so the native memory used is fixed when the
+ * ring is created.
+ *
+ * There must be exactly one producer thread and one consumer thread. The producer
+ * fills the slot returned by acquire (for instance with VideoCapture.read or
+ * Imgproc.resize) and then calls publish. The consumer copies the oldest frame into
+ * its own Mat (see newFrame) with take or poll so that the slot can be refilled
+ * while the frame is being processed. No locks are used, the only shared state is
+ * the head and tail sequence numbers.
+ *
+ * When the ring is full the producer either waits for the consumer (BLOCK) or
+ * discards the oldest frame which has not been taken yet (OVERWRITE_OLDEST), which
+ * is usually what is wanted for live video where only recent frames matter.
+ */
+public class FrameRing {
+    public enum Policy {
+        OVERWRITE_OLDEST,
+        BLOCK
+    }
+
+    /**
+     * How long a waiting thread sleeps between checks of the ring
+     */
+    public static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Mat[] slots;
+
+    private final Size size;
+
+    private final int type;
+
+    private final Policy policy;
+
+    // sequence number of the oldest frame not yet taken, advanced by the consumer
+    // when it takes a frame and by the producer when it drops one
+    private final AtomicLong head = new AtomicLong();
+
+    // sequence number of the next frame to be published, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong numDropped = new AtomicLong();
+
+    private final AtomicLong numTaken = new AtomicLong();
+
+    private volatile long maxDepth;
+
+    private volatile long totalDepth;
+
+    private volatile boolean closed;
+
+    private boolean acquired;
+
+    /**
+     * @param capacity maximum number of frames waiting to be taken
+     * @param size     size of every frame
+     * @param type     OpenCV type of every frame, e.g. CvType.CV_8UC3
+     * @param policy   what the producer does when the ring is full
+     */
+    public FrameRing(int capacity, Size size, int type, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.size = size;
+        this.type = type;
+        this.policy = policy;
+        this.slots = new Mat[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new Mat(size, type);
+        }
+    }
+
+    /**
+     * Get the next free slot for the producer to fill. If the ring is full this
+     * either drops the oldest frame or waits for the consumer, depending on the policy.
+     * The slot must not be resized or have its type changed.
+     *
+     * @return the slot to write the frame into
+     * @throws InterruptedException if the producer is interrupted while waiting
+     */
+    public Mat acquire() throws InterruptedException {
+        if (acquired) {
+            throw new IllegalStateException("Previous slot has not been published");
+        }
+        final long t = tail.get();
+        while (t - head.get() >= slots.length) {
+            if (Policy.OVERWRITE_OLDEST == policy) {
+                // may fail if the consumer takes the oldest frame first, which also frees a slot
+                final long h = head.get();
+                if ((t - h >= slots.length) && head.compareAndSet(h, h + 1)) {
+                    numDropped.incrementAndGet();
+                }
+            } else {
+                waitBriefly();
+            }
+        }
+        acquired = true;
+        return slots[index(t)];
+    }
+
+    /**
+     * Make the frame written into the slot returned by acquire available to the consumer
+     */
+    public void publish() {
+        if (!acquired) {
+            throw new IllegalStateException("No slot has been acquired");
+        }
+        final Mat slot = slots[index(tail.get())];
+        if (!size.equals(slot.size()) || (type != slot.type())) {
+            throw new IllegalStateException("Frame was reallocated as " + slot + ", expected " + size + " type " + type);
+        }
+        acquired = false;
+        final long depth = tail.incrementAndGet() - head.get();
+        totalDepth += depth;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+    }
+
+    /**
+     * Copy a frame into the ring. The frame must be the same size and type as the ring.
+     *
+     * @param frame
+     * @throws InterruptedException if the producer is interrupted while waiting
+     */
+    public void put(Mat frame) throws InterruptedException {
+        if (!size.equals(frame.size()) || (type != frame.type())) {
+            throw new IllegalArgumentException("Frame " + frame + " does not match ring size " + size + " type " + type);
+        }
+        frame.copyTo(acquire());
+        publish();
+    }
+
+    /**
+     * Tell the consumer that no more frames will be published
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Copy the oldest frame into dst if there is one
+     *
+     * @param dst should be a Mat from newFrame so that it isn't reallocated
+     * @return true if a frame was copied
+     */
+    public boolean poll(Mat dst) {
+        while (true) {
+            final long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+            slots[index(h)].copyTo(dst);
+            // The producer only writes a slot once head has moved past it, so if head
+            // is unchanged the copy can't have been overwritten part way through
+            if (head.compareAndSet(h, h + 1)) {
+                numTaken.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copy the oldest frame into dst, waiting for one to be published if necessary
+     *
+     * @param dst should be a Mat from newFrame so that it isn't reallocated
+     * @return false if the ring has been closed and all frames have been taken
+     * @throws InterruptedException if the consumer is interrupted while waiting
+     */
+    public boolean take(Mat dst) throws InterruptedException {
+        while (!poll(dst)) {
+            if (closed && (head.get() >= tail.get())) {
+                return false;
+            }
+            waitBriefly();
+        }
+        return true;
+    }
+
+    /**
+     * Allocate a Mat of the same size and type as the frames in the ring
+     */
+    public Mat newFrame() {
+        return new Mat(size, type);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public Size getSize() {
+        return size;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of frames published but not yet taken or dropped
+     */
+    public int depth() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Greatest number of frames waiting to be taken, measured after each publish
+     */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Mean number of frames waiting to be taken, measured after each publish
+     */
+    public double getMeanDepth() {
+        final long published = tail.get();
+        return (0 == published) ? 0.0 : (double) totalDepth / published;
+    }
+
+    public long getNumPublished() {
+        return tail.get();
+    }
+
+    public long getNumTaken() {
+        return numTaken.get();
+    }
+
+    /**
+     * Number of frames discarded without being taken because the ring was full
+     */
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+    public String report() {
+        return String.format("ring %s capacity %d: published = %d, taken = %d, dropped = %d, mean depth = %.2f, max depth = %d",
+                policy, slots.length, getNumPublished(), getNumTaken(), getNumDropped(), getMeanDepth(), getMaxDepth());
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % slots.length);
+    }
+
+    private static void waitBriefly() throws InterruptedException {
+        LockSupport.parkNanos(WAIT_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
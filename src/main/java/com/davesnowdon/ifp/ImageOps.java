@@ -16,9 +16,15 @@ import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.IntStream;
@@ -27,6 +33,17 @@ import java.util.stream.IntStream;
  * Useful operations on images represented as OpenCV matrices
  */
 public class ImageOps {
+    /**
+     * Maximum width of mosaics built by applyClassifierToMosaic
+     */
+    public static final int MOSAIC_MAX_WIDTH = 2048;
+
+    /**
+     * Default block size and constant for adaptiveThreshold
+     */
+    public static final int ADAPTIVE_BLOCK_SIZE = 25;
+
+    public static final double ADAPTIVE_C = 15;
 
     /**
      * Apply a classifier to an image and return a list of matched rectangles
@@ -36,16 +53,71 @@ public class ImageOps {
      * @return
      */
     public static List<Rect> applyClassifier(CascadeClassifier clr, Mat image) {
+        return applyClassifier(clr, image, DetectionParameters.DEFAULTS);
+    }
+
+    /**
+     * Apply a classifier to an image using the supplied scale factor, min
+     * neighbours and object size limits
+     *
+     * @param clr
+     * @param image
+     * @param params
+     * @return
+     */
+    public static List<Rect> applyClassifier(CascadeClassifier clr, Mat image, DetectionParameters params) {
         final MatOfRect result = new MatOfRect();
-        clr.detectMultiScale(image, result);
+        clr.detectMultiScale(image, result, params.getScaleFactor(), params.getMinNeighbors(), 0,
+                params.getMinSize(), params.getMaxSize());
         return result.toList();
     }
 
     public static List<Rect> applyClassifierToRegionOfInterest(CascadeClassifier clr, Mat image, Rect rect) {
-        final MatOfRect result = new MatOfRect();
-        final Mat roi = regionOfInterest(image, rect);
-        clr.detectMultiScale(roi, result);
-        return result.toList();
+        return applyClassifierToRegionOfInterest(clr, image, rect, DetectionParameters.DEFAULTS);
+    }
+
+    public static List<Rect> applyClassifierToRegionOfInterest(CascadeClassifier clr, Mat image, Rect rect, DetectionParameters params) {
+        return applyClassifier(clr, regionOfInterest(image, rect), params);
+    }
+
+    /**
+     * Apply a classifier to many small images with a single call by packing them into
+     * a grayscale mosaic, converting any colour images as applyClassifier would. The
+     * largest object searched for is limited to the gutter between images so that no
+     * detection window can see more than one image.
+     *
+     * @param clr
+     * @param images
+     * @param params
+     * @param gutter space between images, at least the classifier window size
+     * @return the matches for each image in the same order as the images
+     */
+    public static List<List<Rect>> applyClassifierToMosaic(CascadeClassifier clr, List<Mat> images, DetectionParameters params, int gutter) {
+        final Size window = clr.getOriginalWindowSize();
+        if ((gutter < window.width) || (gutter < window.height)) {
+            throw new IllegalArgumentException("Gutter must be at least as large as the classifier window " + window);
+        }
+        final Size maxSize = params.getMaxSize();
+        final boolean limited = (maxSize.area() > 0) && (maxSize.width <= gutter) && (maxSize.height <= gutter);
+        final DetectionParameters mosaicParams = limited ? params : new DetectionParameters(
+                params.getScaleFactor(), params.getMinNeighbors(), params.getMinSize(), new Size(gutter, gutter));
+
+        final Mosaic mosaic = Mosaic.build(images, gutter, MOSAIC_MAX_WIDTH);
+        return mosaic.split(applyClassifier(clr, mosaic.getImage(), mosaicParams));
+    }
+
+    /**
+     * Apply a classifier to many small images using a mosaic with gutters
+     * twice the size of the classifier window, so objects up to that size are found
+     *
+     * @param clr
+     * @param images
+     * @param params
+     * @return
+     */
+    public static List<List<Rect>> applyClassifierToMosaic(CascadeClassifier clr, List<Mat> images, DetectionParameters params) {
+        final Size window = clr.getOriginalWindowSize();
+        return applyClassifierToMosaic(clr, images, params, (int) (2 * Math.max(window.width, window.height)));
     }
 
     /**
@@ -58,6 +130,45 @@ public class ImageOps {
         return Imgcodecs.imread(filename);
     }
 
+    /**
+     * Read an image from file decoding only as much as the requirements call for.
+     * Grayscale and reduced resolution images are produced directly by the decoder
+     * which is much cheaper than a full colour decode for JPEG files.
+     *
+     * @param filename
+     * @param requirements
+     * @return
+     */
+    public static Mat readImage(String filename, ImageRequirements requirements) {
+        final Size size = readImageSize(filename);
+        return Imgcodecs.imread(filename, requirements.imreadFlags((int) size.width, (int) size.height));
+    }
+
+    /**
+     * Return the dimensions of an image file by reading its header, without decoding
+     * the pixels. Returns an empty size if the format is not recognised.
+     *
+     * @param filename
+     * @return
+     */
+    public static Size readImageSize(String filename) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(filename))) {
+            final Iterator<ImageReader> readers = (null == in) ? Collections.emptyIterator() : ImageIO.getImageReaders(in);
+            if (readers.hasNext()) {
+                final ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    return new Size(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            // fall through, imread will report the problem
+        }
+        return new Size();
+    }
+
     /**
      * Write an OpenCV matrix to an file guessing format from file extension
      *
@@ -82,12 +193,16 @@ public class ImageOps {
 
     /**
      * Convert an openCV matrix representing a colour image to a grayscale
-     * one of the same size
+     * one of the same size. An image which is already single channel (for
+     * instance one read using IMREAD_GRAYSCALE) is returned unchanged.
      *
      * @param input
      * @return
      */
     public static Mat toGrayscale(Mat input) {
+        if (1 == input.channels()) {
+            return input;
+        }
         final Mat gray = new Mat(input.rows(), input.cols(), CvType.CV_8UC3);
         Imgproc.cvtColor(input, gray, Imgproc.COLOR_BGR2GRAY);
         return gray;
@@ -191,12 +306,65 @@ public class ImageOps {
         return dilate(image, 3, 1);
     }
 
+    /**
+     * Apply a box filter (mean of the kernelSize x kernelSize window around each pixel)
+     *
+     * @param image
+     * @param kernelSize
+     * @return
+     */
+    public static Mat boxBlur(Mat image, int kernelSize) {
+        return boxBlur(image, kernelSize, Core.BORDER_DEFAULT);
+    }
+
+    /**
+     * Apply a box filter using the specified method (Core.BORDER_*) to extrapolate
+     * pixels beyond the edge of the image
+     *
+     * @param image
+     * @param kernelSize
+     * @param borderType
+     * @return
+     */
+    public static Mat boxBlur(Mat image, int kernelSize, int borderType) {
+        final Mat result = resultMatrix(image);
+        Imgproc.blur(image, result, new Size(kernelSize, kernelSize), new Point(-1, -1), borderType);
+        return result;
+    }
+
     public static Mat adaptiveThreshold(Mat image) {
+        return adaptiveThreshold(image, ADAPTIVE_BLOCK_SIZE, ADAPTIVE_C);
+    }
+
+    /**
+     * Inverted binary threshold of a grayscale image against the mean of the
+     * blockSize x blockSize window around each pixel less c
+     *
+     * @param image
+     * @param blockSize
+     * @param c
+     * @return
+     */
+    public static Mat adaptiveThreshold(Mat image, int blockSize, double c) {
         Mat thresh = ImageOps.resultMatrix(image);
-        Imgproc.adaptiveThreshold(image, thresh, 255, Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY_INV, 25, 15);
+        Imgproc.adaptiveThreshold(image, thresh, 255, Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY_INV, blockSize, c);
         return thresh;
     }
 
+    /**
+     * Same result as adaptiveThreshold on the image the integral image was made from,
+     * but the window means come from the precomputed table. Cheaper when the same
+     * image is thresholded at several block sizes.
+     *
+     * @param integral
+     * @param blockSize
+     * @param c
+     * @return
+     */
+    public static Mat adaptiveThreshold(IntegralImage integral, int blockSize, double c) {
+        return integral.meanThreshold(blockSize, c, true);
+    }
+
 
     /**
      * Return a mask representing the pixels within the specified range
@@ -354,6 +522,189 @@ public class ImageOps {
                 embedded.height);
     }
 
+    /**
+     * Inverse of offsetRect. Converts a rectangle in the coordinates of the original
+     * image into coordinates relative to the embedded rectangle main, for instance
+     * to map a detection in a mosaic back to the tile it came from.
+     *
+     * @param main
+     * @param absolute
+     */
+    public static Rect unoffsetRect(Rect main, Rect absolute) {
+        return new Rect(
+                absolute.x - main.x,
+                absolute.y - main.y,
+                absolute.width,
+                absolute.height);
+    }
+
+    /**
+     * Return the part of a rectangle which lies within the bounds rectangle
+     *
+     * @param rect
+     * @param bounds
+     * @return
+     */
+    public static Rect clipRect(Rect rect, Rect bounds) {
+        final int x = Math.max(rect.x, bounds.x);
+        final int y = Math.max(rect.y, bounds.y);
+        final int width = Math.min(rect.x + rect.width, bounds.x + bounds.width) - x;
+        final int height = Math.min(rect.y + rect.height, bounds.y + bounds.height) - y;
+        return new Rect(x, y, Math.max(0, width), Math.max(0, height));
+    }
+
+    /**
+     * Area of the intersection of two rectangles divided by the area of their union,
+     * 1.0 for identical rectangles and 0.0 for ones that don't overlap
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static double intersectionOverUnion(Rect a, Rect b) {
+        final int width = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        final int height = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        if ((width <= 0) || (height <= 0)) {
+            return 0.0;
+        }
+        final double intersection = width * height;
+        return intersection / (a.area() + b.area() - intersection);
+    }
+
+    /**
+     * Fraction of the expected rectangles that are matched (intersection over union
+     * of at least 0.5) by one of the found rectangles
+     *
+     * @param expected
+     * @param found
+     * @return
+     */
+    public static double recall(List<Rect> expected, List<Rect> found) {
+        if (expected.isEmpty()) {
+            return 1.0;
+        }
+        final long matched = expected.stream()
+                .filter(e -> found.stream().anyMatch(f -> intersectionOverUnion(e, f) >= 0.5))
+                .count();
+        return ((double) matched) / expected.size();
+    }
+
+    /**
+     * Return the smallest rectangle containing both rectangles
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static Rect union(Rect a, Rect b) {
+        final int x = Math.min(a.x, b.x);
+        final int y = Math.min(a.y, b.y);
+        return new Rect(x, y,
+                Math.max(a.x + a.width, b.x + b.width) - x,
+                Math.max(a.y + a.height, b.y + b.height) - y);
+    }
+
+    /**
+     * Grow a rectangle by the supplied amount on each side and to at least the
+     * minimum size, keeping it centred and within the bounds of the image
+     *
+     * @param rect
+     * @param border
+     * @param minSize
+     * @param imageSize
+     * @return
+     */
+    public static Rect padRect(Rect rect, int border, Size minSize, Size imageSize) {
+        final double width = Math.min(imageSize.width, Math.max(rect.width + 2 * border, minSize.width));
+        final double height = Math.min(imageSize.height, Math.max(rect.height + 2 * border, minSize.height));
+        final double cx = rect.x + rect.width / 2.0;
+        final double cy = rect.y + rect.height / 2.0;
+        final int x = (int) Math.max(0, Math.min(imageSize.width - width, Math.round(cx - width / 2)));
+        final int y = (int) Math.max(0, Math.min(imageSize.height - height, Math.round(cy - height / 2)));
+        return new Rect(x, y, (int) width, (int) height);
+    }
+
+    /**
+     * Repeatedly combine overlapping rectangles until none of the rectangles overlap
+     *
+     * @param rects
+     * @return
+     */
+    public static List<Rect> mergeRects(List<Rect> rects) {
+        final List<Rect> result = new ArrayList<>(rects);
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; (i < result.size()) && !merged; ++i) {
+                for (int j = i + 1; j < result.size(); ++j) {
+                    if (intersectionOverUnion(result.get(i), result.get(j)) > 0.0) {
+                        result.set(i, union(result.get(i), result.remove(j)));
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find candidate regions which might contain an object by looking for areas
+     * within the range low-high in HSV colour space. The mask is computed on a copy
+     * of the image reduced to maskWidth pixels wide since it only needs to be rough.
+     * Regions are padded, grown to at least minSize and merged where they overlap.
+     *
+     * @param image     colour image
+     * @param low
+     * @param high
+     * @param maskWidth width at which to compute the mask, 0 to use the full image
+     * @param padding   border to add as a fraction of the larger side of each region
+     * @param minSize   smallest region worth returning, typically the classifier window
+     * @return rectangles in the coordinates of the supplied image
+     */
+    public static List<Rect> proposeRegions(Mat image, Scalar low, Scalar high, int maskWidth, double padding, Size minSize) {
+        final boolean reduce = (maskWidth > 0) && (maskWidth < image.cols());
+        final Mat small = reduce ? resizeByWidth(image, maskWidth) : image;
+        final double scale = ((double) image.cols()) / small.cols();
+
+        final List<Rect> proposals = new ArrayList<>();
+        for (MatOfPoint contour : findContours(hsvMask(small, low, high))) {
+            final Rect r = Imgproc.boundingRect(contour);
+            final Rect scaled = new Rect(
+                    (int) Math.floor(r.x * scale),
+                    (int) Math.floor(r.y * scale),
+                    (int) Math.ceil(r.width * scale),
+                    (int) Math.ceil(r.height * scale));
+            final int border = (int) Math.round(padding * Math.max(scaled.width, scaled.height));
+            proposals.add(padRect(scaled, border, minSize, image.size()));
+        }
+        return mergeRects(proposals);
+    }
+
+    /**
+     * Apply a classifier only to the proposed regions of an image, returning the
+     * matches in the coordinates of the whole image. If there are no proposals
+     * the whole image is searched.
+     *
+     * @param clr
+     * @param image
+     * @param proposals
+     * @param params
+     * @return
+     */
+    public static List<Rect> applyClassifierToProposals(CascadeClassifier clr, Mat image, List<Rect> proposals, DetectionParameters params) {
+        if (proposals.isEmpty()) {
+            return applyClassifier(clr, image, params);
+        }
+        final List<Rect> result = new ArrayList<>();
+        for (Rect proposal : proposals) {
+            for (Rect found : applyClassifierToRegionOfInterest(clr, image, proposal, params)) {
+                result.add(offsetRect(proposal, found));
+            }
+        }
+        return result;
+    }
+
     /**
      * Find the contours in an image which is assumed to be grayscale
      * http://docs.opencv.org/3.1.0/d3/dc0/group__imgproc__shape.html#ga17ed9f5d79ae97bd4c7cf18403e1689a
@@ -0,0 +1,85 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Describes what a command needs from its input image so that the loader can avoid
+ * decoding more than is necessary. The JPEG decoder can produce grayscale output and
+ * can scale by 1/2, 1/4 or 1/8 while decoding, which is much cheaper than decoding
+ * the full colour image and then converting and resizing it.
+ */
+public class ImageRequirements {
+    public static final int UNLIMITED = 0;
+
+    public static final ImageRequirements FULL_COLOUR = new ImageRequirements(true, UNLIMITED);
+
+    private static final int[] REDUCTION_FACTORS = {8, 4, 2};
+
+    private final boolean colour;
+
+    private final int maxDimension;
+
+    /**
+     * @param colour       true if the command needs a BGR image, false if grayscale is enough
+     * @param maxDimension largest useful width or height, UNLIMITED if the full resolution is needed
+     */
+    public ImageRequirements(boolean colour, int maxDimension) {
+        this.colour = colour;
+        this.maxDimension = maxDimension;
+    }
+
+    public boolean isColour() {
+        return colour;
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Largest scale reduction (1, 2, 4 or 8) that still leaves an image of at least
+     * maxDimension pixels along its longest side
+     *
+     * @param width  width of the encoded image
+     * @param height height of the encoded image
+     * @return
+     */
+    public int reductionFactor(int width, int height) {
+        if (UNLIMITED == maxDimension) {
+            return 1;
+        }
+        final int longest = Math.max(width, height);
+        for (int factor : REDUCTION_FACTORS) {
+            if (longest / factor >= maxDimension) {
+                return factor;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Flags to pass to Imgcodecs.imread for an image of the given size
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public int imreadFlags(int width, int height) {
+        switch (reductionFactor(width, height)) {
+            case 8:
+                return colour ? Imgcodecs.IMREAD_REDUCED_COLOR_8 : Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+            case 4:
+                return colour ? Imgcodecs.IMREAD_REDUCED_COLOR_4 : Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+            case 2:
+                return colour ? Imgcodecs.IMREAD_REDUCED_COLOR_2 : Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+            default:
+                return colour ? Imgcodecs.IMREAD_COLOR : Imgcodecs.IMREAD_GRAYSCALE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (colour ? "colour" : "gray") + ", max dimension " + (UNLIMITED == maxDimension ? "unlimited" : Integer.toString(maxDimension));
+    }
+}
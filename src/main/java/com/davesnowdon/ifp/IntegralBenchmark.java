@@ -0,0 +1,102 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Compare OpenCV's adaptiveThreshold and blur against the same operations using an
+ * IntegralImage across a range of block sizes, as in a parameter sweep over one frame.
+ * The integral image is built once per frame and its cost is reported separately.
+ * Agreement is the fraction of output pixels identical to OpenCV's, OpenCV's box
+ * filter uses fixed point arithmetic so some means differ by 1.
+ *
+ * Usage: IntegralBenchmark [image] [iterations]
+ */
+public class IntegralBenchmark {
+    public static final String DEFAULT_IMAGE = "src/test/resources/money.jpg";
+
+    public static final int[] BLOCK_SIZES = {3, 7, 15, 25, 51, 101};
+
+    public static final int DEFAULT_ITERATIONS = 20;
+
+    public static void main(String[] argv) {
+        final String filename = (argv.length > 0) ? argv[0] : DEFAULT_IMAGE;
+        final int iterations = (argv.length > 1) ? Integer.parseInt(argv[1]) : DEFAULT_ITERATIONS;
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        final Mat gray = ImageOps.toGrayscale(ImageOps.readImage(filename));
+        System.out.println(filename + ": " + gray.cols() + "x" + gray.rows());
+
+        // warm up
+        IntegralImage integral = new IntegralImage(gray);
+        for (int blockSize : BLOCK_SIZES) {
+            ImageOps.adaptiveThreshold(gray, blockSize, ImageOps.ADAPTIVE_C);
+            ImageOps.adaptiveThreshold(integral, blockSize, ImageOps.ADAPTIVE_C);
+            ImageOps.boxBlur(gray, blockSize, Core.BORDER_REPLICATE);
+            integral.boxFilter(blockSize);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            integral = new IntegralImage(gray);
+        }
+        final double buildMillis = millisPerIteration(start, iterations);
+        System.out.println(String.format("build integral image: %.2f ms", buildMillis));
+
+        double openCvTotal = 0;
+        double integralTotal = buildMillis;
+        for (int blockSize : BLOCK_SIZES) {
+            start = System.nanoTime();
+            Mat cvThresh = null;
+            for (int i = 0; i < iterations; ++i) {
+                cvThresh = ImageOps.adaptiveThreshold(gray, blockSize, ImageOps.ADAPTIVE_C);
+            }
+            final double cvThreshMillis = millisPerIteration(start, iterations);
+
+            start = System.nanoTime();
+            Mat intThresh = null;
+            for (int i = 0; i < iterations; ++i) {
+                intThresh = ImageOps.adaptiveThreshold(integral, blockSize, ImageOps.ADAPTIVE_C);
+            }
+            final double intThreshMillis = millisPerIteration(start, iterations);
+
+            start = System.nanoTime();
+            Mat cvBlur = null;
+            for (int i = 0; i < iterations; ++i) {
+                cvBlur = ImageOps.boxBlur(gray, blockSize, Core.BORDER_REPLICATE);
+            }
+            final double cvBlurMillis = millisPerIteration(start, iterations);
+
+            start = System.nanoTime();
+            Mat intBlur = null;
+            for (int i = 0; i < iterations; ++i) {
+                intBlur = integral.boxFilter(blockSize);
+            }
+            final double intBlurMillis = millisPerIteration(start, iterations);
+
+            openCvTotal += cvThreshMillis + cvBlurMillis;
+            integralTotal += intThreshMillis + intBlurMillis;
+            System.out.println(String.format("block %3d: threshold OpenCV %6.2f ms, integral %6.2f ms, agreement %.4f; blur OpenCV %6.2f ms, integral %6.2f ms, agreement %.4f, max difference %.0f",
+                    blockSize, cvThreshMillis, intThreshMillis, agreement(cvThresh, intThresh),
+                    cvBlurMillis, intBlurMillis, agreement(cvBlur, intBlur), maxDifference(cvBlur, intBlur)));
+        }
+        System.out.println(String.format("whole sweep: OpenCV %.2f ms, integral (including build) %.2f ms", openCvTotal, integralTotal));
+    }
+
+    private static double millisPerIteration(long start, int iterations) {
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    private static double maxDifference(Mat a, Mat b) {
+        final Mat diff = new Mat();
+        Core.absdiff(a, b, diff);
+        return Core.minMaxLoc(diff).maxVal;
+    }
+
+    private static double agreement(Mat a, Mat b) {
+        final Mat diff = new Mat();
+        Core.absdiff(a, b, diff);
+        return 1.0 - (double) Core.countNonZero(diff) / (a.rows() * a.cols());
+    }
+}
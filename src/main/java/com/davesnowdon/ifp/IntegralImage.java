@@ -0,0 +1,196 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Summed area table for a single channel 8 bit image. Once it has been computed the
+ * sum (and so the mean) of any rectangular window can be found from four values, so
+ * box filtering and mean adaptive thresholding cost the same per pixel whatever the
+ * window size and the table can be reused for as many window sizes as needed.
+ *
+ * The image is padded by replicating its edge pixels by maxRadius on each side before
+ * the table is built, so the borders are treated the same way as by OpenCV's
+ * adaptiveThreshold for block sizes up to 2 * maxRadius + 1. Larger windows are
+ * clipped to the padded image and averaged over the pixels they cover. Means are
+ * rounded to the nearest integer whereas OpenCV uses fixed point arithmetic for 8 bit
+ * images, so a small fraction of means are 1 higher than OpenCV's.
+ *
+ * Sums are held as ints. They may overflow for very large images but, as the sum of
+ * a single window always fits in an int, the differences used are still correct.
+ */
+public class IntegralImage {
+    public static final int DEFAULT_MAX_RADIUS = 50;
+
+    private final int rows;
+
+    private final int cols;
+
+    private final int maxRadius;
+
+    // (rows + 2 * maxRadius + 1) x (cols + 2 * maxRadius + 1), first row and column are zero
+    private final int[] table;
+
+    private final int stride;
+
+    private final byte[] pixels;
+
+    /**
+     * @param image     single channel 8 bit image
+     * @param maxRadius largest window radius that gives an exact match with OpenCV
+     */
+    public IntegralImage(Mat image, int maxRadius) {
+        if (CvType.CV_8UC1 != image.type()) {
+            throw new IllegalArgumentException("Integral image needs a single channel 8 bit image");
+        }
+        this.rows = image.rows();
+        this.cols = image.cols();
+        this.maxRadius = maxRadius;
+
+        this.pixels = new byte[rows * cols];
+        (image.isContinuous() ? image : image.clone()).get(0, 0, pixels);
+
+        final Mat padded = new Mat();
+        Core.copyMakeBorder(image, padded, maxRadius, maxRadius, maxRadius, maxRadius, Core.BORDER_REPLICATE);
+        final int paddedRows = padded.rows();
+        final int paddedCols = padded.cols();
+        final byte[] paddedPixels = new byte[paddedRows * paddedCols];
+        padded.get(0, 0, paddedPixels);
+
+        this.stride = paddedCols + 1;
+        this.table = new int[(paddedRows + 1) * stride];
+        for (int y = 0; y < paddedRows; ++y) {
+            int rowSum = 0;
+            final int src = y * paddedCols;
+            final int above = y * stride;
+            final int dst = above + stride;
+            for (int x = 0; x < paddedCols; ++x) {
+                rowSum += paddedPixels[src + x] & 0xff;
+                table[dst + x + 1] = table[above + x + 1] + rowSum;
+            }
+        }
+    }
+
+    public IntegralImage(Mat image) {
+        this(image, DEFAULT_MAX_RADIUS);
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Sum of the pixels in a window given in image coordinates. The window may extend
+     * up to maxRadius pixels beyond the edges of the image, where the edge pixels are
+     * repeated, and is clipped beyond that.
+     *
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @return
+     */
+    public int sum(int x, int y, int width, int height) {
+        final int x0 = clip(x + maxRadius, cols + 2 * maxRadius);
+        final int y0 = clip(y + maxRadius, rows + 2 * maxRadius);
+        final int x1 = clip(x + width + maxRadius, cols + 2 * maxRadius);
+        final int y1 = clip(y + height + maxRadius, rows + 2 * maxRadius);
+        return table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    /**
+     * Mean of the blockSize x blockSize window centred on each pixel, rounded to the
+     * nearest integer. Equivalent to Imgproc.blur with a square kernel and
+     * BORDER_REPLICATE.
+     *
+     * @param blockSize odd window size
+     * @return
+     */
+    public Mat boxFilter(int blockSize) {
+        final Mat result = new Mat(rows, cols, CvType.CV_8UC1);
+        result.put(0, 0, means(blockSize));
+        return result;
+    }
+
+    /**
+     * Mean adaptive threshold using the mean of the blockSize x blockSize window around
+     * each pixel, equivalent to Imgproc.adaptiveThreshold using ADAPTIVE_THRESH_MEAN_C.
+     *
+     * @param blockSize odd window size
+     * @param c         constant subtracted from the mean
+     * @param inverse   true for THRESH_BINARY_INV, false for THRESH_BINARY
+     * @return
+     */
+    public Mat meanThreshold(int blockSize, double c, boolean inverse) {
+        // same integer comparison and lookup table as OpenCV so that rounding matches
+        final int delta = inverse ? (int) Math.floor(c) : (int) Math.ceil(c);
+        final byte[] lookup = new byte[768];
+        for (int i = 0; i < lookup.length; ++i) {
+            final boolean above = i - 255 > -delta;
+            lookup[i] = (byte) ((above != inverse) ? 255 : 0);
+        }
+
+        final byte[] means = means(blockSize);
+        for (int i = 0; i < means.length; ++i) {
+            means[i] = lookup[(pixels[i] & 0xff) - (means[i] & 0xff) + 255];
+        }
+        final Mat result = new Mat(rows, cols, CvType.CV_8UC1);
+        result.put(0, 0, means);
+        return result;
+    }
+
+    /**
+     * Rounded window mean for every pixel in row major order
+     */
+    private byte[] means(int blockSize) {
+        if ((blockSize < 1) || (0 == blockSize % 2)) {
+            throw new IllegalArgumentException("Block size must be odd: " + blockSize);
+        }
+        final int radius = blockSize / 2;
+        final int paddedRows = rows + 2 * maxRadius;
+        final int paddedCols = cols + 2 * maxRadius;
+
+        // window columns in the table are the same for every row
+        final int[] left = new int[cols];
+        final int[] right = new int[cols];
+        for (int x = 0; x < cols; ++x) {
+            left[x] = clip(x + maxRadius - radius, paddedCols);
+            right[x] = clip(x + maxRadius + radius + 1, paddedCols);
+        }
+
+        // windows only need clipping if they extend past the padding
+        final boolean clipped = radius > maxRadius;
+        final double fullScale = 1.0 / (blockSize * blockSize);
+
+        final byte[] result = new byte[rows * cols];
+        for (int y = 0; y < rows; ++y) {
+            final int y0 = clip(y + maxRadius - radius, paddedRows);
+            final int y1 = clip(y + maxRadius + radius + 1, paddedRows);
+            final int top = y0 * stride;
+            final int bottom = y1 * stride;
+            final int out = y * cols;
+            for (int x = 0; x < cols; ++x) {
+                final int x0 = left[x];
+                final int x1 = right[x];
+                final int sum = table[bottom + x1] - table[top + x1] - table[bottom + x0] + table[top + x0];
+                final double scale = clipped ? 1.0 / ((y1 - y0) * (x1 - x0)) : fullScale;
+                result[out + x] = (byte) Math.rint(sum * scale);
+            }
+        }
+        return result;
+    }
+
+    private static int clip(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+}
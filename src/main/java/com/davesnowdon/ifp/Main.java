@@ -14,15 +14,18 @@ import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 /**
@@ -45,15 +48,54 @@ public class Main {
 
     public static final String OPTION_INTERMEDIATE = "intermediate";
 
+    public static final String OPTION_GATE_THRESHOLD = "gate-threshold";
+
+    public static final String OPTION_MAX_STALENESS = "max-staleness";
+
+    public static final String OPTION_FAST_DECODE = "fast-decode";
+
+    public static final String OPTION_SCALE_FACTOR = "scale-factor";
+
+    public static final String OPTION_MIN_NEIGHBORS = "min-neighbors";
+
+    public static final String OPTION_MIN_SIZE = "min-size";
+
+    public static final String OPTION_MAX_SIZE = "max-size";
+
+    public static final String OPTION_LATENCY_BUDGET = "latency-budget";
+
+    public static final String OPTION_RING_CAPACITY = "ring-capacity";
+
+    public static final String OPTION_RING_POLICY = "ring-policy";
+
     public static final Scalar OUTLINE_COLOUR = new Scalar(0.0, 255.0, 0.0);
 
     public static final Scalar CENTRE_COLOUR = new Scalar(255.0, 0.0, 0.0);
 
     public static final String FACE_XML = "src/main/resources/haarcascade_frontalface_default.xml";
 
-    static Set<String> commands = new HashSet<>(Arrays.asList("classifier", "show", "find-blob", "find-faces", "find-line", "blur", "shapes"));
+    /**
+     * Width at which to compute the colour mask used to propose regions for the classifier
+     */
+    public static final int PROPOSAL_MASK_WIDTH = 320;
 
-    public static void main(String[] argv) {
+    /**
+     * Border added around proposed regions as a fraction of their size
+     */
+    public static final double PROPOSAL_PADDING = 1.0;
+
+    /**
+     * Smallest proposed region as a multiple of the classifier window size. Colour masks
+     * usually only pick out part of an object, so regions need to be bigger than that.
+     */
+    public static final double PROPOSAL_MIN_SCALE = 2.0;
+
+    static Set<String> commands = new HashSet<>(Arrays.asList("classifier", "show", "find-blob", "find-faces", "find-line", "blur", "shapes", "stream"));
+
+    /**
+     * Command line options shared by all the commands
+     */
+    public static Options createOptions() {
         Options options = new Options();
         options.addOption("c", OPTION_COMMAND, true, "Command to run, one of: " + commands);
         options.addOption("i", OPTION_IMAGE, true, "Input image filename");
@@ -63,7 +105,21 @@ public class Main {
         options.addOption("h", OPTION_HIGH, true, "Comma separated triple for high end of range");
         options.addOption("d", OPTION_CLASSIFIER, true, "XML file to use as classifier");
         options.addOption("v", OPTION_INTERMEDIATE, false, "Write intermediate images to file");
+        options.addOption("t", OPTION_GATE_THRESHOLD, true, "Mean pixel difference below which a frame is considered unchanged");
+        options.addOption("s", OPTION_MAX_STALENESS, true, "Maximum number of consecutive frames which can reuse a previous result");
+        options.addOption("f", OPTION_FAST_DECODE, false, "Only decode the colour channels and resolution that the command needs");
+        options.addOption("x", OPTION_SCALE_FACTOR, true, "Classifier scale factor between image scales (default 1.1)");
+        options.addOption("n", OPTION_MIN_NEIGHBORS, true, "Classifier neighbouring detections needed to keep a match (default 3)");
+        options.addOption("m", OPTION_MIN_SIZE, true, "Smallest object to detect, <W>x<H> or <N>");
+        options.addOption("M", OPTION_MAX_SIZE, true, "Largest object to detect, <W>x<H> or <N>");
+        options.addOption("b", OPTION_LATENCY_BUDGET, true, "Target milliseconds per frame, adapts classifier parameters to meet it");
+        options.addOption("r", OPTION_RING_CAPACITY, true, "Read stream frames on a separate thread into a ring of this many frames");
+        options.addOption("p", OPTION_RING_POLICY, true, "What to do when the ring is full: overwrite (default) or block");
+        return options;
+    }
 
+    public static void main(String[] argv) {
+        Options options = createOptions();
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine line = parser.parse(options, argv);
@@ -83,39 +139,14 @@ public class Main {
 
             System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 
-            Mat image = ImageOps.readImage(imageFilename);
-
-            Mat output = null;
-            switch (command) {
-                case "blur":
-                    output = commandBlur(image, line);
-                    break;
-
-                case "classifier":
-                    output = commandApplyClassifier(image, line);
-                    break;
-
-                case "find-blob":
-                    output = commandFindBlob(image, line);
-                    break;
-
-                case "find-faces":
-                    output = commandFindFaces(image, line);
-                    break;
-
-                case "find-line":
-                    output = commandFindVerticalLine(image, line);
-                    break;
-
-                case "shapes":
-                    output = commandShapes(image, line);
-                    break;
-
-                case "show":
-                    output = commandShow(image, line);
-                    break;
+            if ("stream".equals(command)) {
+                commandStream(imageFilename, line);
+                return;
             }
 
+            Mat image = readInput(imageFilename, command, line);
+            Mat output = runCommand(command, image, line);
+
             if (null != output) {
                 if (line.hasOption(OPTION_OUTPUT)) {
                     final String outputFilename = line.getOptionValue(OPTION_OUTPUT);
@@ -134,6 +165,97 @@ public class Main {
         }
     }
 
+    /**
+     * Run a single image command and return the output image (if any) without displaying it
+     *
+     * @param command
+     * @param image
+     * @param line
+     * @return
+     */
+    public static Mat runCommand(String command, Mat image, CommandLine line) throws ParseException {
+        Mat output = null;
+        switch (command) {
+            case "blur":
+                output = commandBlur(image, line);
+                break;
+
+            case "classifier":
+                output = commandApplyClassifier(image, line);
+                break;
+
+            case "find-blob":
+                output = commandFindBlob(image, line);
+                break;
+
+            case "find-faces":
+                output = commandFindFaces(image, line);
+                break;
+
+            case "find-line":
+                output = commandFindVerticalLine(image, line);
+                break;
+
+            case "shapes":
+                output = commandShapes(image, line);
+                break;
+
+            case "show":
+                output = commandShow(image, line);
+                break;
+        }
+        return output;
+    }
+
+
+    /**
+     * Describe the input that each command needs. Commands which start by converting the
+     * image to grayscale don't need the colour channels, and the detectors work just as
+     * well on a smaller image. Note that with reduced decoding the output image is also
+     * grayscale and/or smaller.
+     *
+     * @param command
+     * @return
+     */
+    public static ImageRequirements inputRequirements(String command) {
+        switch (command) {
+            case "classifier":
+            case "find-faces":
+            case "stream":
+                return new ImageRequirements(false, 640);
+
+            case "shapes":
+                return new ImageRequirements(false, 500);
+
+            case "find-line":
+                return new ImageRequirements(false, ImageRequirements.UNLIMITED);
+
+            case "find-blob":
+                return new ImageRequirements(true, 600);
+
+            default:
+                return ImageRequirements.FULL_COLOUR;
+        }
+    }
+
+    static Mat readInput(String filename, String command, CommandLine line) {
+        if (line.hasOption(OPTION_FAST_DECODE)) {
+            ImageRequirements requirements = inputRequirements(command);
+            if (line.hasOption(OPTION_LOW) && usesProposals(command) && !requirements.isColour()) {
+                // region proposals need colour
+                requirements = new ImageRequirements(true, requirements.getMaxDimension());
+            }
+            return ImageOps.readImage(filename, requirements);
+        }
+        return ImageOps.readImage(filename);
+    }
+
+    /**
+     * True for the commands which propose regions from a colour mask when given an HSV range
+     */
+    static boolean usesProposals(String command) {
+        return "classifier".equals(command) || "find-faces".equals(command);
+    }
 
     /**
      * Demo reading an image using OpenCv, converting it to a java image and displaying it using Swing
@@ -150,26 +272,33 @@ public class Main {
      * @return
      */
     private static Mat commandApplyClassifier(Mat image, CommandLine line) throws ParseException {
-        if (!line.hasOption(OPTION_CLASSIFIER)) {
-            throw new ParseException("Need to specify classifier filename");
-        }
-        String classifierFilename = line.getOptionValue(OPTION_CLASSIFIER);
-        return applyClassifier(image, classifierFilename);
+        return applyClassifier(image, "classifier", line);
     }
 
     /**
      * Read an image and locate any faces
      */
     public static Mat commandFindFaces(Mat image, CommandLine line) throws ParseException {
-        return applyClassifier(image, FACE_XML);
+        return applyClassifier(image, "find-faces", line);
     }
 
-    private static Mat applyClassifier(Mat image, String classifierFilename) throws ParseException {
-        final Mat gray = ImageOps.toGrayscale(image);
-        final CascadeClassifier faceClassifier = new CascadeClassifier(classifierFilename);
-        List<Rect> faces = ImageOps.applyClassifier(faceClassifier, gray);
+    private static Mat applyClassifier(Mat image, String command, CommandLine line) throws ParseException {
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename(command, line));
+        final Optional<List<Rect>> proposals = proposeRegions(image, classifier, line);
+        if (proposals.isPresent()) {
+            final double scanned = proposals.get().isEmpty() ? 1.0
+                    : proposals.get().stream().mapToDouble(Rect::area).sum() / image.size().area();
+            System.out.println(proposals.get().size() + " regions proposed, scanning " + Math.round(scanned * 100) + "% of pixels");
+        }
+
+        final List<Rect> faces = findObjects(image, classifier, proposals, line);
         System.out.println(Integer.toString(faces.size()) + " objects found");
 
+        if (proposals.isPresent()) {
+            for (Rect proposal : proposals.get()) {
+                Imgproc.rectangle(image, ImageOps.minPoint(proposal), ImageOps.maxPoint(proposal), CENTRE_COLOUR, 1);
+            }
+        }
         for (Rect face : faces) {
             Imgproc.rectangle(image, ImageOps.minPoint(face), ImageOps.maxPoint(face), OUTLINE_COLOUR, 2);
         }
@@ -177,21 +306,253 @@ public class Main {
         return image;
     }
 
-    public static Mat commandFindBlob(Mat image, CommandLine line) throws ParseException {
+    /**
+     * Objects found by the classifier or find-faces command, only searching regions of
+     * the right colour if an HSV range is given
+     *
+     * @param image
+     * @param command classifier or find-faces
+     * @param line
+     * @return
+     */
+    public static List<Rect> findObjects(Mat image, String command, CommandLine line) throws ParseException {
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename(command, line));
+        return findObjects(image, classifier, proposeRegions(image, classifier, line), line);
+    }
+
+    private static List<Rect> findObjects(Mat image, CascadeClassifier classifier, Optional<List<Rect>> proposals,
+                                          CommandLine line) throws ParseException {
+        final Mat gray = ImageOps.toGrayscale(image);
+        final DetectionParameters params = detectionParameters(line);
+        if (proposals.isPresent()) {
+            return ImageOps.applyClassifierToProposals(classifier, gray, proposals.get(), params);
+        }
+        return ImageOps.applyClassifier(classifier, gray, params);
+    }
+
+    private static String classifierFilename(String command, CommandLine line) throws ParseException {
+        if ("find-faces".equals(command)) {
+            return FACE_XML;
+        }
+        if (!line.hasOption(OPTION_CLASSIFIER)) {
+            throw new ParseException("Need to specify classifier filename");
+        }
+        return line.getOptionValue(OPTION_CLASSIFIER);
+    }
+
+    /**
+     * Regions of the image with the right colour for the classifier to search, if an HSV
+     * range was given
+     */
+    private static Optional<List<Rect>> proposeRegions(Mat image, CascadeClassifier classifier, CommandLine line)
+            throws ParseException {
+        if (!line.hasOption(OPTION_LOW) && !line.hasOption(OPTION_HIGH)) {
+            return Optional.empty();
+        }
+        return Optional.of(ImageOps.proposeRegions(image, parseHsv(line, OPTION_LOW), parseHsv(line, OPTION_HIGH),
+                PROPOSAL_MASK_WIDTH, PROPOSAL_PADDING, proposalMinSize(classifier)));
+    }
+
+    public static Size proposalMinSize(CascadeClassifier classifier) {
+        final Size window = classifier.getOriginalWindowSize();
+        return new Size(Math.round(window.width * PROPOSAL_MIN_SCALE), Math.round(window.height * PROPOSAL_MIN_SCALE));
+    }
+
+    /**
+     * Build the classifier parameters from the command line, using the defaults for
+     * anything not specified
+     *
+     * @param line
+     * @return
+     */
+    public static DetectionParameters detectionParameters(CommandLine line) throws ParseException {
+        final DetectionParameters defaults = DetectionParameters.DEFAULTS;
+        try {
+            return new DetectionParameters(
+                    Double.parseDouble(line.getOptionValue(OPTION_SCALE_FACTOR, Double.toString(defaults.getScaleFactor()))),
+                    Integer.parseInt(line.getOptionValue(OPTION_MIN_NEIGHBORS, Integer.toString(defaults.getMinNeighbors()))),
+                    line.hasOption(OPTION_MIN_SIZE) ? DetectionParameters.parseSize(line.getOptionValue(OPTION_MIN_SIZE)) : defaults.getMinSize(),
+                    line.hasOption(OPTION_MAX_SIZE) ? DetectionParameters.parseSize(line.getOptionValue(OPTION_MAX_SIZE)) : defaults.getMaxSize());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid classifier parameters: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Treat the images in a directory (in filename order) as the frames of a video stream and
+     * run the classifier (faces unless another is specified) over them, skipping frames that
+     * have not changed significantly since the last frame that was processed
+     *
+     * @param directory
+     * @param line
+     */
+    public static void commandStream(String directory, CommandLine line) throws ParseException {
+        final File[] frames = new File(directory).listFiles();
+        if (null == frames) {
+            throw new ParseException("Stream input must be a directory of images: " + directory);
+        }
+        Arrays.sort(frames);
+
+        double threshold = FrameDifferenceGate.DEFAULT_THRESHOLD;
+        if (line.hasOption(OPTION_GATE_THRESHOLD)) {
+            threshold = Double.parseDouble(line.getOptionValue(OPTION_GATE_THRESHOLD));
+        }
+        int maxStaleness = FrameDifferenceGate.DEFAULT_MAX_STALENESS;
+        if (line.hasOption(OPTION_MAX_STALENESS)) {
+            maxStaleness = Integer.parseInt(line.getOptionValue(OPTION_MAX_STALENESS));
+        }
+
+        final String classifierFilename = line.getOptionValue(OPTION_CLASSIFIER, FACE_XML);
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename);
+        final FrameDifferenceGate<List<Rect>> gate =
+                new FrameDifferenceGate<>(threshold, maxStaleness, FrameDifferenceGate.DEFAULT_WIDTH);
+
+        final DetectionParameters params = detectionParameters(line);
+        final AdaptiveDetector detector;
+        if (line.hasOption(OPTION_LATENCY_BUDGET)) {
+            final double budget = Double.parseDouble(line.getOptionValue(OPTION_LATENCY_BUDGET));
+            detector = new AdaptiveDetector(classifier, budget, params, AdaptiveDetector.DEFAULT_WINDOW);
+        } else {
+            detector = null;
+        }
+
+        final Function<Mat, List<Rect>> detect = image -> gate.apply(image, m -> (null != detector)
+                ? detector.detect(ImageOps.toGrayscale(m))
+                : ImageOps.applyClassifier(classifier, ImageOps.toGrayscale(m), params));
+
+        if (line.hasOption(OPTION_RING_CAPACITY)) {
+            streamThroughRing(frames, line, detect);
+        } else {
+            for (File frame : frames) {
+                final Mat image = readInput(frame.getPath(), "stream", line);
+                if (image.empty()) {
+                    continue;
+                }
+                List<Rect> objects = detect.apply(image);
+                System.out.println(frame.getName() + ": " + objects.size() + " objects found");
+            }
+        }
+        System.out.println(gate.report());
+        if (null != detector) {
+            System.out.println(String.format("mean detection time = %.1f ms, over budget = %.2f, final parameters: %s",
+                    detector.getMeanMillis(), detector.getOverBudgetRatio(), detector.getCurrentParameters()));
+        }
+    }
+
+    /**
+     * Read the frames on a separate capture thread into a FrameRing and run detection on
+     * this thread, so that reading and detection overlap. The ring's size and type are
+     * taken from the first frame, later frames of a different size are resized to fit.
+     *
+     * @param frames
+     * @param line
+     * @param detect
+     */
+    private static void streamThroughRing(File[] frames, CommandLine line, Function<Mat, List<Rect>> detect)
+            throws ParseException {
+        final int capacity = Integer.parseInt(line.getOptionValue(OPTION_RING_CAPACITY));
+        final FrameRing.Policy policy;
+        switch (line.getOptionValue(OPTION_RING_POLICY, "overwrite")) {
+            case "overwrite":
+                policy = FrameRing.Policy.OVERWRITE_OLDEST;
+                break;
+
+            case "block":
+                policy = FrameRing.Policy.BLOCK;
+                break;
+
+            default:
+                throw new ParseException("Ring policy must be overwrite or block");
+        }
+
+        Mat first = new Mat();
+        for (File frame : frames) {
+            first = readInput(frame.getPath(), "stream", line);
+            if (!first.empty()) {
+                break;
+            }
+        }
+        if (first.empty()) {
+            return;
+        }
+        final FrameRing ring = new FrameRing(capacity, first.size(), first.type(), policy);
+
+        final Thread capture = new Thread(() -> {
+            try {
+                for (File frame : frames) {
+                    final Mat image = readInput(frame.getPath(), "stream", line);
+                    if (image.empty() || (image.type() != ring.getType())) {
+                        continue;
+                    }
+                    final Mat slot = ring.acquire();
+                    if (image.size().equals(ring.getSize())) {
+                        image.copyTo(slot);
+                    } else {
+                        Imgproc.resize(image, slot, ring.getSize());
+                    }
+                    ring.publish();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                ring.close();
+            }
+        }, "capture");
+        capture.start();
+
+        final Mat image = ring.newFrame();
+        try {
+            while (ring.take(image)) {
+                List<Rect> objects = detect.apply(image);
+                System.out.println("frame " + ring.getNumTaken() + ": " + objects.size() + " objects found");
+            }
+            capture.join();
+        } catch (InterruptedException e) {
+            capture.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(ring.report());
+    }
+
+    /**
+     * Parse one end of an HSV range from the command line
+     *
+     * @param line
+     * @param option OPTION_LOW or OPTION_HIGH
+     * @return
+     */
+    static Scalar parseHsv(CommandLine line, String option) throws ParseException {
         if (!line.hasOption(OPTION_LOW) || !line.hasOption(OPTION_HIGH)) {
             throw new ParseException("Need to specify both low and high for range operations");
         }
-        final String[] lows = line.getOptionValue(OPTION_LOW).split(",");
-        if (3 != lows.length) {
-            throw new ParseException("Low values should be <H>,<S>,<V>");
+        try {
+            return parseHsv(line.getOptionValue(option));
+        } catch (ParseException e) {
+            throw new ParseException("--" + option + ": " + e.getMessage());
         }
-        Scalar low = new Scalar(Double.valueOf(lows[0]), Double.valueOf(lows[1]), Double.valueOf(lows[2]));
+    }
 
-        final String[] highs = line.getOptionValue(OPTION_HIGH).split(",");
-        if (3 != highs.length) {
-            throw new ParseException("High values should be <H>,<S>,<V>");
+    /**
+     * Parse a comma separated H,S,V triple
+     *
+     * @param value
+     * @return
+     */
+    static Scalar parseHsv(String value) throws ParseException {
+        final String[] values = value.split(",");
+        if (3 != values.length) {
+            throw new ParseException("HSV values should be <H>,<S>,<V>: " + value);
         }
-        Scalar high = new Scalar(Double.valueOf(highs[0]), Double.valueOf(highs[1]), Double.valueOf(highs[2]));
+        try {
+            return new Scalar(Double.valueOf(values[0]), Double.valueOf(values[1]), Double.valueOf(values[2]));
+        } catch (NumberFormatException e) {
+            throw new ParseException("HSV values should be numbers: " + value);
+        }
+    }
+
+    public static Mat commandFindBlob(Mat image, CommandLine line) throws ParseException {
+        Scalar low = parseHsv(line, OPTION_LOW);
+        Scalar high = parseHsv(line, OPTION_HIGH);
 
         Optional<Blob> maybeBlob = ImageOps.findBlob(image, low, high);
         if (maybeBlob.isPresent()) {
@@ -217,6 +578,23 @@ public class Main {
     }
 
     public static Mat commandShapes(Mat image, CommandLine line) {
+        Optional<MatOfPoint> quadrilateral = findQuadrilateral(image);
+        if (quadrilateral.isPresent()) {
+            MatOfPoint contour = quadrilateral.get();
+            Rect r = Imgproc.boundingRect(contour);
+            Imgproc.drawContours(image, Arrays.asList(contour), -1, OUTLINE_COLOUR, 2);
+            Imgproc.putText(image, "4", new Point(r.x, r.y - 10), 0, 0.5, OUTLINE_COLOUR, 2);
+        }
+        return image;
+    }
+
+    /**
+     * Return the contour of the largest 4-sided shape in the image, if any
+     *
+     * @param image
+     * @return
+     */
+    public static Optional<MatOfPoint> findQuadrilateral(Mat image) {
         Mat gray = ImageOps.toGrayscale(image);
         Mat blurred = ImageOps.gaussianBlur(gray, 5);
         Mat edges = ImageOps.resultMatrix(blurred);
@@ -227,40 +605,84 @@ public class Main {
 
         // Start at largest contour and look for 4-sided shapes
         for (MatOfPoint contour : contours) {
-            final MatOfPoint2f m2f = new MatOfPoint2f();
-            // need to convert the contour from a MatOfPoint to MatOfPoint2f
-            m2f.fromList(contour.toList());
-
-            /*
-             * Produce an approximation of the polygon so that edges that are not-quite straight lines
-             * get approximated to a straight line.
-             */
-            double perimeter = Imgproc.arcLength(m2f, true);
-            MatOfPoint2f approx = new MatOfPoint2f();
-            Imgproc.approxPolyDP(m2f, approx, 0.01 * perimeter, true);
-
-            int numSides = approx.toList().size();
+            int numSides = approximatePolygon(contour).toList().size();
             if (4 == numSides) {
-                Rect r = Imgproc.boundingRect(contour);
-                Imgproc.drawContours(image, Arrays.asList(contour), -1, OUTLINE_COLOUR, 2);
-                Imgproc.putText(image, Integer.toString(numSides), new Point(r.x, r.y - 10), 0, 0.5, OUTLINE_COLOUR, 2);
-                break;
+                return Optional.of(contour);
             }
         }
-        return image;
+        return Optional.empty();
+    }
+
+    /**
+     * Produce an approximation of the polygon so that edges that are not-quite straight lines
+     * get approximated to a straight line.
+     *
+     * @param contour
+     * @return the corners of the polygon
+     */
+    public static MatOfPoint2f approximatePolygon(MatOfPoint contour) {
+        final MatOfPoint2f m2f = new MatOfPoint2f();
+        // need to convert the contour from a MatOfPoint to MatOfPoint2f
+        m2f.fromList(contour.toList());
+
+        double perimeter = Imgproc.arcLength(m2f, true);
+        MatOfPoint2f approx = new MatOfPoint2f();
+        Imgproc.approxPolyDP(m2f, approx, 0.01 * perimeter, true);
+        return approx;
     }
 
     /**
      * Detect a line in an image, Return [offset, orientation] or nil, if no
      line detected.  offset: rough position of the line on screen [-1,
      +1] (-1: on the extreme left, 1: on the extreme right, 0: centered)
-     orientation: its orientation [-pi/2,pi/2] Adapted from the python
+     orientation: its angle from vertical in radians [-pi/2,pi/2] Adapted from the python
      implementation by Alexandre Mazel, https://youtu.be/UGj3H6ETHJg"
      * @param image
      * @param line
      * @return
      */
     public static Mat commandFindVerticalLine(Mat image, CommandLine line) {
+        Mat thresh = verticalEdges(image, line);
+        Optional<VerticalLine> found = locateVerticalLine(thresh);
+        if (!found.isPresent()) {
+            return thresh;
+        }
+        double offset = found.get().getOffset();
+        double orientation = found.get().getOrientation();
+
+        /*
+         * Draw a straight line over the detected line
+         */
+        final int halfWidth = image.cols() / 2;
+        final int halfHeight = image.rows() / 2;
+        int x = halfWidth + (int) Math.round(offset * halfWidth);
+        int xOffset = (int) Math.round(Math.tan(orientation) * halfHeight);
+        System.out.println("X = "+x+", X orientation offset = "+xOffset);
+        // Line with orientation, positive orientation means the top is to the right
+        Imgproc.line(image, new Point(x+xOffset, 0), new Point(x-xOffset, image.rows()-1), CENTRE_COLOUR, 2);
+
+        // Line without orientation
+        Imgproc.line(image, new Point(x, 0), new Point(x, image.rows()-1), OUTLINE_COLOUR, 2);
+
+
+        return image;
+    }
+
+    /**
+     * Find the position and orientation of a vertical line in the image, if there is one
+     *
+     * @param image
+     * @param line
+     * @return
+     */
+    public static Optional<VerticalLine> findVerticalLine(Mat image, CommandLine line) {
+        return locateVerticalLine(verticalEdges(image, line));
+    }
+
+    /**
+     * Return a grayscale image which is non-zero only where there are strong vertical edges
+     */
+    private static Mat verticalEdges(Mat image, CommandLine line) {
         Mat gray = ImageOps.toGrayscale(image);
         writeIntermediateOutput(gray, "-1-gray", line);
 
@@ -278,33 +700,37 @@ public class Main {
         Mat thresh = ImageOps.resultMatrix(gray);
         Imgproc.threshold(convolved, thresh, 45.0, 255, Imgproc.THRESH_TOZERO);
         writeIntermediateOutput(thresh, "-3-thresh", line);
+        return thresh;
+    }
 
+    private static Optional<VerticalLine> locateVerticalLine(Mat thresh) {
         // Get the X position of the highest value pixel in each row
         int[] positions = ImageOps.argMaxRow(thresh);
         System.out.println("Row argmax ="+Arrays.toString(positions));
 
         // find rows with line segments
-        int[] nonZeroPositions = IntStream.of(positions).filter(v -> v > 0).toArray();
+        int[] nonZeroRows = IntStream.range(0, positions.length).filter(r -> positions[r] > 0).toArray();
+        int[] nonZeroPositions = IntStream.of(nonZeroRows).map(r -> positions[r]).toArray();
 
         if (nonZeroPositions.length < 4) {
             System.out.println("Detected line is very short");
-            return thresh;
+            return Optional.empty();
         }
 
         /*
          * Sample the X positions of the line at the top, middle and bottom of the image and
          * use this to determine the line position and orientation
          */
-        int firstNonZero = nonZeroPositions[0];
-        int lastNonZero = nonZeroPositions[nonZeroPositions.length-1];
-        int heightSampling = lastNonZero - firstNonZero;
-        int samplingSize = Math.max(Math.min(nonZeroPositions.length / 40, 8), 1);
+        final int len = nonZeroPositions.length;
+        int samplingSize = Math.max(Math.min(len / 40, 8), 1);
+        int bottomStart = len - samplingSize - 1;
+        double heightSampling = IntStream.of(nonZeroRows).skip(bottomStart).limit(samplingSize).average().getAsDouble()
+                - IntStream.of(nonZeroRows).limit(samplingSize).average().getAsDouble();
         System.out.println("Height sampling = "+heightSampling+", sampling size = "+samplingSize);
 
-        final int len = nonZeroPositions.length;
         int[] topSamples = Arrays.copyOfRange(nonZeroPositions, 0, samplingSize);
         int[] middleSamples = Arrays.copyOfRange(nonZeroPositions, len/2, len/2+samplingSize);
-        int[] bottomSamples = Arrays.copyOfRange(nonZeroPositions, len-samplingSize-1, len-1);
+        int[] bottomSamples = Arrays.copyOfRange(nonZeroPositions, bottomStart, len-1);
 
         double top = IntStream.of(topSamples).average().getAsDouble();
         double middle = IntStream.of(middleSamples).average().getAsDouble();
@@ -312,28 +738,13 @@ public class Main {
         System.out.println("Top = "+top+", middle = "+middle+", bottom = "+bottom);
 
         /*
-         * Line horizontal location and orientation
+         * Line horizontal location and orientation, the angle from vertical which is
+         * positive when the top of the line is to the right of the bottom
          */
-        double orientation = (top - bottom) / heightSampling;
-        double offset = (middle / image.cols()) * 2 - 1;
+        double orientation = (heightSampling > 0) ? Math.atan((top - bottom) / heightSampling) : 0.0;
+        double offset = (middle / thresh.cols()) * 2 - 1;
         System.out.println("X offset = "+offset+", orienation = "+orientation);
-
-        /*
-         * Draw a straight line over the detected line
-         */
-        final int halfWidth = image.cols() / 2;
-        final int halfHeight = image.rows() / 2;
-        int x = halfWidth + (int) Math.round(offset * halfWidth);
-        int xOffset = (int) Math.round(Math.sin(orientation) * halfHeight);
-        System.out.println("X = "+x+", X orientation offset = "+xOffset);
-        // Line with orientation
-        Imgproc.line(image, new Point(x-xOffset, 0), new Point(x+xOffset, image.rows()-1), CENTRE_COLOUR, 2);
-
-        // Line without orientation
-        Imgproc.line(image, new Point(x, 0), new Point(x, image.rows()-1), OUTLINE_COLOUR, 2);
-
-
-        return image;
+        return Optional.of(new VerticalLine(offset, orientation));
     }
 
     private static void writeIntermediateOutput(Mat image, String suffix, CommandLine line) {
@@ -0,0 +1,135 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Many small grayscale images packed into one large image so that a detector can be
+ * run once over all of them, avoiding the fixed per-call cost. The images are laid out
+ * in rows separated by gutters. A detection window larger than the gutter could see
+ * parts of two images at once, so detection over a mosaic should be limited to
+ * objects no bigger than the gutter (see getGutter).
+ *
+ * The gutters are filled with a fine checkerboard rather than left blank. Cascade
+ * classifiers reject that almost immediately whereas windows over a uniform area
+ * have no contrast to reject and end up being very slow to evaluate.
+ */
+public class Mosaic {
+    private final Mat image;
+
+    private final List<Rect> tiles;
+
+    private final int gutter;
+
+    private Mosaic(Mat image, List<Rect> tiles, int gutter) {
+        this.image = image;
+        this.tiles = tiles;
+        this.gutter = gutter;
+    }
+
+    /**
+     * Pack the images into rows no wider than maxWidth (unless a single image is
+     * wider than that) with a gutter around every image. Colour (BGR) images are
+     * converted to grayscale, other images must be single channel 8 bit.
+     *
+     * @param images
+     * @param gutter
+     * @param maxWidth
+     * @return
+     */
+    public static Mosaic build(List<Mat> images, int gutter, int maxWidth) {
+        final List<Rect> tiles = new ArrayList<>();
+        int x = gutter;
+        int y = gutter;
+        int rowHeight = 0;
+        int width = 0;
+        for (Mat img : images) {
+            if ((x > gutter) && (x + img.cols() + gutter > maxWidth)) {
+                x = gutter;
+                y += rowHeight + gutter;
+                rowHeight = 0;
+            }
+            tiles.add(new Rect(x, y, img.cols(), img.rows()));
+            x += img.cols() + gutter;
+            width = Math.max(width, x);
+            rowHeight = Math.max(rowHeight, img.rows());
+        }
+        final int height = y + rowHeight + gutter;
+
+        final Mat mosaic = checkerboard(height, width);
+        for (int i = 0; i < images.size(); ++i) {
+            // copyTo would reallocate a tile of a different type instead of writing into the mosaic
+            final Mat gray = ImageOps.toGrayscale(images.get(i));
+            if (CvType.CV_8UC1 != gray.type()) {
+                throw new IllegalArgumentException("Mosaic needs 8 bit grayscale or BGR images, image " + i + " is " + gray);
+            }
+            gray.copyTo(ImageOps.regionOfInterest(mosaic, tiles.get(i)));
+        }
+        return new Mosaic(mosaic, Collections.unmodifiableList(tiles), gutter);
+    }
+
+    /**
+     * Grayscale image filled with alternating 2x2 black and white squares
+     */
+    private static Mat checkerboard(int rows, int cols) {
+        final Mat result = new Mat(rows, cols, CvType.CV_8UC1);
+        final byte[][] pattern = new byte[2][cols];
+        for (int x = 0; x < cols; ++x) {
+            pattern[0][x] = (byte) ((0 == (x / 2) % 2) ? 0 : 255);
+            pattern[1][x] = (byte) ((0 == (x / 2) % 2) ? 255 : 0);
+        }
+        for (int y = 0; y < rows; ++y) {
+            result.put(y, 0, pattern[(y / 2) % 2]);
+        }
+        return result;
+    }
+
+    public Mat getImage() {
+        return image;
+    }
+
+    /**
+     * Position of each of the original images in the mosaic
+     */
+    public List<Rect> getTiles() {
+        return tiles;
+    }
+
+    public int getGutter() {
+        return gutter;
+    }
+
+    /**
+     * Assign each rectangle found in the mosaic to the tile containing its centre,
+     * returning one list of rectangles per original image in that image's own
+     * coordinates. Rectangles whose centre is in a gutter are discarded.
+     *
+     * @param found
+     * @return
+     */
+    public List<List<Rect>> split(List<Rect> found) {
+        final List<List<Rect>> result = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); ++i) {
+            result.add(new ArrayList<>());
+        }
+
+        for (Rect rect : found) {
+            final Point centre = new Point(rect.x + rect.width / 2.0, rect.y + rect.height / 2.0);
+            for (int i = 0; i < tiles.size(); ++i) {
+                final Rect tile = tiles.get(i);
+                if (tile.contains(centre)) {
+                    result.get(i).add(ImageOps.unoffsetRect(tile, ImageOps.clipRect(rect, tile)));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
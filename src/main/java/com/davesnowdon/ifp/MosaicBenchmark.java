@@ -0,0 +1,84 @@
+package com.davesnowdon.ifp;
+
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compare the throughput of applying a classifier to many thumbnail sized images one
+ * at a time against packing them into a mosaic and running the classifier once. The
+ * thumbnails are made by shrinking the test images to several widths. Recall is the
+ * fraction of the per-image detections that are also found using the mosaic.
+ *
+ * Usage: MosaicBenchmark [classifier XML] [directory of images]
+ */
+public class MosaicBenchmark {
+    public static final String DEFAULT_DIRECTORY = "src/test/resources";
+
+    public static final int[] THUMBNAIL_WIDTHS = {48, 64, 96, 128};
+
+    public static final int COPIES = 4;
+
+    public static final int ITERATIONS = 10;
+
+    public static void main(String[] argv) {
+        final String classifierFilename = (argv.length > 0) ? argv[0] : Main.FACE_XML;
+        final String directory = (argv.length > 1) ? argv[1] : DEFAULT_DIRECTORY;
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename);
+        final DetectionParameters params = DetectionParameters.DEFAULTS;
+
+        final File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(".jpg"));
+        Arrays.sort(files);
+
+        for (int width : THUMBNAIL_WIDTHS) {
+            final List<Mat> thumbnails = new ArrayList<>();
+            for (int i = 0; i < COPIES; ++i) {
+                for (File file : files) {
+                    thumbnails.add(ImageOps.resizeByWidth(ImageOps.toGrayscale(ImageOps.readImage(file.getPath())), width));
+                }
+            }
+
+            // warm up both paths and get the results to compare
+            final List<List<Rect>> single = new ArrayList<>();
+            for (Mat thumbnail : thumbnails) {
+                single.add(ImageOps.applyClassifier(classifier, thumbnail, params));
+            }
+            final List<List<Rect>> mosaic = ImageOps.applyClassifierToMosaic(classifier, thumbnails, params);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                for (Mat thumbnail : thumbnails) {
+                    ImageOps.applyClassifier(classifier, thumbnail, params);
+                }
+            }
+            final double singleSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                ImageOps.applyClassifierToMosaic(classifier, thumbnails, params);
+            }
+            final double mosaicSeconds = (System.nanoTime() - start) / 1e9;
+
+            int expected = 0;
+            double matched = 0;
+            for (int i = 0; i < thumbnails.size(); ++i) {
+                expected += single.get(i).size();
+                matched += ImageOps.recall(single.get(i), mosaic.get(i)) * single.get(i).size();
+            }
+
+            final int numImages = thumbnails.size() * ITERATIONS;
+            System.out.println(String.format("width %3d: per image %8.1f images/s, mosaic %8.1f images/s (%.2fx), recall %.2f of %d objects",
+                    width, numImages / singleSeconds, numImages / mosaicSeconds, singleSeconds / mosaicSeconds,
+                    (0 == expected) ? 1.0 : matched / expected, expected));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.davesnowdon.ifp;
+
+
+import org.apache.commons.cli.ParseException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compare applying a classifier to the whole image against applying it only to the
+ * regions proposed by a colour mask, reporting the fraction of pixels scanned, the
+ * time taken and the recall compared to the full image scan. The mask is computed at
+ * several widths to show the effect of downscaling it.
+ *
+ * Usage: ProposalBenchmark [classifier XML] [low H,S,V] [high H,S,V] [image,image...]
+ */
+public class ProposalBenchmark {
+    public static final String DEFAULT_CLASSIFIER = "src/main/resources/nao_cascade.xml";
+
+    // NAO robots in the test images have blue panels
+    public static final String DEFAULT_LOW = "95,80,40";
+
+    public static final String DEFAULT_HIGH = "130,255,255";
+
+    public static final String DEFAULT_IMAGES = "src/test/resources/image-with-nao1.jpg,src/test/resources/image-with-nao2.jpg";
+
+    public static final int[] MASK_WIDTHS = {0, 320, 160, 80};
+
+    public static final int ITERATIONS = 10;
+
+    public static void main(String[] argv) throws ParseException {
+        final String classifierFilename = (argv.length > 0) ? argv[0] : DEFAULT_CLASSIFIER;
+        final Scalar low = Main.parseHsv((argv.length > 1) ? argv[1] : DEFAULT_LOW);
+        final Scalar high = Main.parseHsv((argv.length > 2) ? argv[2] : DEFAULT_HIGH);
+        final List<String> images = Arrays.asList(((argv.length > 3) ? argv[3] : DEFAULT_IMAGES).split(","));
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        final CascadeClassifier classifier = new CascadeClassifier(classifierFilename);
+        final DetectionParameters params = DetectionParameters.DEFAULTS;
+
+        for (String filename : images) {
+            final Mat image = ImageOps.readImage(filename);
+            final Mat gray = ImageOps.toGrayscale(image);
+
+            ImageOps.applyClassifier(classifier, gray, params);
+            long start = System.nanoTime();
+            List<Rect> expected = null;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                expected = ImageOps.applyClassifier(classifier, gray, params);
+            }
+            final double fullMillis = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+            System.out.println(String.format("%s: %d objects in %.2f ms scanning the full image", filename, expected.size(), fullMillis));
+            System.out.println(String.format("  %10s %10s %10s %10s %8s", "mask width", "regions", "scanned", "ms", "recall"));
+
+            for (int maskWidth : MASK_WIDTHS) {
+                List<Rect> proposals = null;
+                List<Rect> found = null;
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; ++i) {
+                    // time includes computing the proposals as well as the detection
+                    proposals = ImageOps.proposeRegions(image, low, high, maskWidth, Main.PROPOSAL_PADDING, Main.proposalMinSize(classifier));
+                    found = ImageOps.applyClassifierToProposals(classifier, gray, proposals, params);
+                }
+                final double millis = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+                final double scanned = proposals.isEmpty() ? 1.0 : proposals.stream().mapToDouble(Rect::area).sum() / image.size().area();
+                System.out.println(String.format("  %10s %10d %9.0f%% %10.2f %8.2f",
+                        (0 == maskWidth) ? "full" : Integer.toString(maskWidth), proposals.size(),
+                        scanned * 100, millis, ImageOps.recall(expected, found)));
+            }
+        }
+    }
+}
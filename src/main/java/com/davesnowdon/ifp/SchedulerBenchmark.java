@@ -0,0 +1,104 @@
+package com.davesnowdon.ifp;
+
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Run a command over a batch of images with every split of cores between java
+ * workers and OpenCV threads, reporting throughput and per-image latency for each.
+ * Takes the same options as Main. The image option can be a comma separated list
+ * and defaults to all the JPEGs in src/test/resources.
+ *
+ * Usage: SchedulerBenchmark --command find-faces [--image a.jpg,b.jpg] [other Main options]
+ */
+public class SchedulerBenchmark {
+    public static final String DEFAULT_DIRECTORY = "src/test/resources";
+
+    public static final int REPEATS = 10;
+
+    public static void main(String[] argv) throws ParseException, InterruptedException, ExecutionException {
+        final CommandLine line = new DefaultParser().parse(Main.createOptions(), argv);
+        final String command = line.getOptionValue(Main.OPTION_COMMAND, "find-faces");
+
+        final List<String> images = new ArrayList<>();
+        if (line.hasOption(Main.OPTION_IMAGE)) {
+            images.addAll(Arrays.asList(line.getOptionValue(Main.OPTION_IMAGE).split(",")));
+        } else {
+            final File[] files = new File(DEFAULT_DIRECTORY).listFiles((dir, name) -> name.endsWith(".jpg"));
+            Arrays.sort(files);
+            for (File file : files) {
+                images.add(file.getPath());
+            }
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        final List<String> jobs = new ArrayList<>();
+        for (int i = 0; i < REPEATS; ++i) {
+            jobs.addAll(images);
+        }
+
+        final double meanPixels = images.stream().mapToDouble(f -> ImageOps.readImageSize(f).area()).average().orElse(0);
+        final ExecutionScheduler chosen = ExecutionScheduler.automatic(new Size(Math.sqrt(meanPixels), Math.sqrt(meanPixels)), command);
+
+        System.out.println(command + ": " + jobs.size() + " images, " + ExecutionScheduler.availableCores() + " cores, automatic split is " + chosen);
+        System.out.println(String.format("%-30s %10s %12s %12s", "split", "images/s", "mean ms", "p95 ms"));
+
+        // automatic always picks one of these, so it is marked in the table below
+        for (ExecutionScheduler scheduler : ExecutionScheduler.allSplits()) {
+            // warm up, then time the whole batch with the commands' own output suppressed
+            runBatch(scheduler, images, command, line);
+            final long start = System.nanoTime();
+            final List<Double> latencies = runBatch(scheduler, jobs, command, line);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            Collections.sort(latencies);
+            final double mean = latencies.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+            final double p95 = latencies.get((int) Math.ceil(0.95 * latencies.size()) - 1);
+            System.out.println(String.format("%-30s %10.1f %12.2f %12.2f%s",
+                    scheduler, jobs.size() / seconds, mean, p95,
+                    scheduler.equals(chosen) ? "  (automatic)" : ""));
+        }
+    }
+
+    /**
+     * Run the command on each image and return the time taken for each in milliseconds
+     */
+    private static List<Double> runBatch(ExecutionScheduler scheduler, List<String> images, String command, CommandLine line)
+            throws InterruptedException, ExecutionException {
+        final PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            return scheduler.run(images, filename -> {
+                final long start = System.nanoTime();
+                try {
+                    final Mat image = Main.readInput(filename, command, line);
+                    Main.runCommand(command, image, line);
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
+                return (System.nanoTime() - start) / 1e6;
+            });
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.davesnowdon.ifp;
+
+
+/**
+ * Position and orientation of a roughly vertical line found in an image
+ */
+public class VerticalLine {
+    /**
+     * Position of the line across the image from -1 (left edge) to 1 (right edge)
+     */
+    private final double offset;
+
+    /**
+     * Angle of the line from vertical in radians in the range [-pi/2, pi/2], positive
+     * when the top of the line is to the right of the bottom
+     */
+    private final double orientation;
+
+    public VerticalLine(double offset, double orientation) {
+        this.offset = offset;
+        this.orientation = orientation;
+    }
+
+    public double getOffset() {
+        return offset;
+    }
+
+    public double getOrientation() {
+        return orientation;
+    }
+}
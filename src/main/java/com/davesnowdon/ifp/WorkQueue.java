@@ -0,0 +1,285 @@
+package com.davesnowdon.ifp;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of work units held in a directory which may be shared between processes
+ * and machines. Each unit is a text file listing the images to process. Work is
+ * claimed by atomically renaming a unit from pending/ into claimed/WORKER/, so only
+ * one worker can ever claim a given unit. Workers rewrite a file in heartbeats/ while
+ * they are alive, and units claimed by a worker whose heartbeat has stopped changing
+ * are renamed back into pending/ so that another worker can pick them up.
+ *
+ * Once everything has been submitted the queue is sealed by writing a manifest of
+ * all the units. The queue is finished when every unit in the manifest is in done/,
+ * so units in transit between directories can never make it look finished early.
+ *
+ * Layout:
+ * <pre>
+ *   pending/UNIT          waiting to be processed
+ *   claimed/WORKER/UNIT   being processed by WORKER
+ *   done/UNIT             processed
+ *   results/UNIT          one line of results per image in the unit
+ *   heartbeats/WORKER     rewritten with a new value at every heartbeat
+ *   manifest              names of all the units, written once they are all submitted
+ *   tmp/                  files are written here then renamed into place
+ * </pre>
+ *
+ * Renames are only atomic within a filesystem, so the whole queue must be on one.
+ */
+public class WorkQueue {
+    public static final String PENDING = "pending";
+
+    public static final String CLAIMED = "claimed";
+
+    public static final String DONE = "done";
+
+    public static final String RESULTS = "results";
+
+    public static final String HEARTBEATS = "heartbeats";
+
+    public static final String TMP = "tmp";
+
+    public static final String MANIFEST = "manifest";
+
+    private final Path root;
+
+    // last heartbeat seen from each worker and when it was seen, using this process's
+    // clock so that clock differences between machines don't matter
+    private final Map<String, String> lastHeartbeats = new HashMap<>();
+
+    private final Map<String, Long> lastHeartbeatMillis = new HashMap<>();
+
+    private final AtomicLong heartbeatCount = new AtomicLong();
+
+    public WorkQueue(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Create the queue directories if they don't already exist
+     */
+    public void create() throws IOException {
+        for (String dir : new String[]{PENDING, CLAIMED, DONE, RESULTS, HEARTBEATS, TMP}) {
+            Files.createDirectories(root.resolve(dir));
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Add a unit of work to the queue
+     *
+     * @param unit  name of the unit, must be unique within the queue
+     * @param lines contents of the unit, typically image filenames
+     */
+    public void submit(String unit, List<String> lines) throws IOException {
+        writeAtomically(root.resolve(PENDING).resolve(unit), lines);
+    }
+
+    /**
+     * Record that all units have been submitted
+     *
+     * @param units names of all the units in the queue
+     */
+    public void seal(List<String> units) throws IOException {
+        writeAtomically(root.resolve(MANIFEST), units);
+    }
+
+    /**
+     * True once all the units have been submitted
+     */
+    public boolean isSealed() {
+        return Files.exists(root.resolve(MANIFEST));
+    }
+
+    /**
+     * Claim the next pending unit for the worker, if there is one
+     *
+     * @param worker
+     * @return the path of the claimed unit
+     */
+    public Optional<Path> claim(String worker) throws IOException {
+        final Path claimedDir = root.resolve(CLAIMED).resolve(worker);
+        Files.createDirectories(claimedDir);
+        for (Path unit : list(root.resolve(PENDING))) {
+            final Path claimed = claimedDir.resolve(unit.getFileName());
+            try {
+                Files.move(unit, claimed, StandardCopyOption.ATOMIC_MOVE);
+                return Optional.of(claimed);
+            } catch (NoSuchFileException e) {
+                // another worker got there first, try the next one
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Record the results for a claimed unit and mark it as done. Returns false if the
+     * unit had been taken away from this worker (because its heartbeat went stale) in
+     * which case the results are still written but the unit may be processed again.
+     *
+     * @param claimed
+     * @param results
+     * @return
+     */
+    public boolean complete(Path claimed, List<String> results) throws IOException {
+        final Path unit = claimed.getFileName();
+        writeAtomically(root.resolve(RESULTS).resolve(unit), results);
+        try {
+            Files.move(claimed, root.resolve(DONE).resolve(unit), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record that the worker is still alive
+     *
+     * @param worker
+     */
+    public void heartbeat(String worker) throws IOException {
+        // the count makes every heartbeat different even if the clock hasn't moved on
+        writeAtomically(root.resolve(HEARTBEATS).resolve(worker),
+                Collections.singletonList(heartbeatCount.incrementAndGet() + " " + System.currentTimeMillis()));
+    }
+
+    /**
+     * Put units back into pending if the worker that claimed them has not sent a
+     * heartbeat within the timeout. Can safely be called by any number of processes.
+     * A worker's heartbeat is only compared with the previous one seen by this
+     * process, so nothing is requeued until this process has been watching the
+     * worker for the full timeout.
+     *
+     * @param timeoutMillis
+     * @return number of units requeued
+     */
+    public int requeueAbandoned(long timeoutMillis) throws IOException {
+        int count = 0;
+        final long now = System.currentTimeMillis();
+        for (Path workerDir : list(root.resolve(CLAIMED))) {
+            final String worker = workerDir.getFileName().toString();
+            final String heartbeat = readHeartbeat(worker);
+            if (!heartbeat.equals(lastHeartbeats.get(worker))) {
+                lastHeartbeats.put(worker, heartbeat);
+                lastHeartbeatMillis.put(worker, now);
+            }
+            if (now - lastHeartbeatMillis.get(worker) < timeoutMillis) {
+                continue;
+            }
+            for (Path unit : list(workerDir)) {
+                try {
+                    Files.move(unit, root.resolve(PENDING).resolve(unit.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                    ++count;
+                } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                    // completed or requeued by someone else in the meantime
+                }
+            }
+        }
+        return count;
+    }
+
+    public int numPending() throws IOException {
+        return list(root.resolve(PENDING)).size();
+    }
+
+    public int numClaimed() throws IOException {
+        int count = 0;
+        for (Path workerDir : list(root.resolve(CLAIMED))) {
+            count += list(workerDir).size();
+        }
+        return count;
+    }
+
+    public int numDone() throws IOException {
+        return list(root.resolve(DONE)).size();
+    }
+
+    /**
+     * Number of units in the manifest, or -1 if the queue has not been sealed yet
+     */
+    public int numSubmitted() throws IOException {
+        return isSealed() ? readManifest().size() : -1;
+    }
+
+    /**
+     * True when the queue has been sealed and every unit in it is done
+     */
+    public boolean isFinished() throws IOException {
+        if (!isSealed()) {
+            return false;
+        }
+        final Path done = root.resolve(DONE);
+        for (String unit : readManifest()) {
+            if (!Files.exists(done.resolve(unit))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<String> readManifest() throws IOException {
+        final List<String> result = new ArrayList<>();
+        for (String unit : Files.readAllLines(root.resolve(MANIFEST))) {
+            if (!unit.trim().isEmpty()) {
+                result.add(unit.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Contents of the worker's heartbeat file, empty if there isn't one
+     */
+    private String readHeartbeat(String worker) throws IOException {
+        try {
+            return new String(Files.readAllBytes(root.resolve(HEARTBEATS).resolve(worker)), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return "";
+        }
+    }
+
+    private void writeAtomically(Path target, List<String> lines) throws IOException {
+        final Path tmp = Files.createTempFile(root.resolve(TMP), target.getFileName().toString(), ".tmp");
+        Files.write(tmp, lines);
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.delete(tmp);
+            throw e;
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        final List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return result;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
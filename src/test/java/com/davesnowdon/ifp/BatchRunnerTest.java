@@ -0,0 +1,211 @@
+package com.davesnowdon.ifp;
+
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a coordinator and several worker processes on a queue in a temporary
+ * directory, kills one of the workers while it is part way through a unit and checks
+ * that every unit still ends up in done/ with a result for every image.
+ *
+ * The same images are copied into several directories and listed so that each unit
+ * holds images with the same name, which must not overwrite each other's output.
+ */
+public class BatchRunnerTest {
+    private static final String[] IMAGES = {
+            "image-with-nao1.jpg", "image-with-nao2.jpg", "money.jpg", "contains-blue-blob.jpg", "image-with-line.jpg"
+    };
+
+    private static final String[] CAMERAS = {"cam1", "cam2"};
+
+    private static final int NUM_WORKERS = 3;
+
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 2000;
+
+    private static final long TIMEOUT_MILLIS = 120000;
+
+    /**
+     * A child JVM whose output is collected as it runs
+     */
+    private static class Child {
+        private final String name;
+
+        private final Process process;
+
+        private final List<String> output = Collections.synchronizedList(new ArrayList<>());
+
+        Child(String name, String... args) throws IOException {
+            this.name = name;
+            final List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-Djava.awt.headless=true");
+            command.add("-Djava.library.path=" + System.getProperty("java.library.path", ""));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BatchRunner.class.getName());
+            Collections.addAll(command, args);
+            this.process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+            final Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while (null != (line = in.readLine())) {
+                        output.add(line);
+                    }
+                } catch (IOException e) {
+                    // process killed
+                }
+            }, name + "-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Worker id printed by BatchRunner when the worker starts
+         */
+        String workerId() throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (output) {
+                    for (String line : output) {
+                        if (line.startsWith("Worker ") && line.endsWith(" started")) {
+                            return line.substring("Worker ".length(), line.length() - " started".length());
+                        }
+                    }
+                }
+                Thread.sleep(10);
+            }
+            throw new AssertionError(name + " did not start:\n" + describe());
+        }
+
+        void assertExitsCleanly() throws InterruptedException {
+            assertTrue(name + " did not finish:\n" + describe(), process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(name + " failed:\n" + describe(), 0, process.exitValue());
+        }
+
+        String describe() {
+            synchronized (output) {
+                return String.join("\n", output);
+            }
+        }
+    }
+
+    @Test
+    public void killedWorkersUnitIsRequeued() throws Exception {
+        final Path dir = Files.createTempDirectory("batch-runner");
+        final List<Child> children = new ArrayList<>();
+        try {
+            // the copies of each image are next to each other so each unit holds two with the same name
+            final List<String> images = new ArrayList<>();
+            for (String image : IMAGES) {
+                for (String camera : CAMERAS) {
+                    final Path copy = dir.resolve(camera).resolve(image);
+                    Files.createDirectories(copy.getParent());
+                    try (InputStream in = BatchRunnerTest.class.getResourceAsStream("/" + image)) {
+                        Files.copy(in, copy);
+                    }
+                    images.add(copy.toString());
+                }
+            }
+            final Path list = Files.write(dir.resolve("images.txt"), images);
+            final Path queueDir = dir.resolve("queue");
+            final String timeout = Long.toString(HEARTBEAT_TIMEOUT_MILLIS);
+
+            // workers first, they wait for the coordinator to queue the work
+            for (int i = 0; i < NUM_WORKERS; ++i) {
+                children.add(new Child("worker " + i, "worker", "--queue", queueDir.toString(),
+                        "--command", "find-faces", "--workers", "1", "--cv-threads", "1",
+                        "--heartbeat-timeout", timeout));
+            }
+            final Child coordinator = new Child("coordinator", "coordinate", "--queue", queueDir.toString(),
+                    "--list", list.toString(), "--unit-size", Integer.toString(CAMERAS.length),
+                    "--heartbeat-timeout", timeout);
+            children.add(coordinator);
+
+            // kill the first worker as soon as it has claimed a unit
+            final Child victim = children.get(0);
+            final Path victimClaims = queueDir.resolve(WorkQueue.CLAIMED).resolve(victim.workerId());
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (listNames(victimClaims).isEmpty()) {
+                assertTrue("Worker never claimed a unit:\n" + victim.describe(), System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            victim.process.destroyForcibly().waitFor();
+            final List<String> abandoned = listNames(victimClaims);
+            assertTrue("Worker finished its unit before it was killed", !abandoned.isEmpty());
+
+            coordinator.assertExitsCleanly();
+            for (Child worker : children.subList(1, NUM_WORKERS)) {
+                worker.assertExitsCleanly();
+            }
+
+            final WorkQueue queue = new WorkQueue(queueDir);
+            assertTrue("Queue not finished", queue.isFinished());
+            final List<String> done = listNames(queueDir.resolve(WorkQueue.DONE));
+            assertEquals(IMAGES.length, done.size());
+            assertTrue("Abandoned units " + abandoned + " not done", done.containsAll(abandoned));
+            assertEquals(0, queue.numPending());
+            assertEquals(0, queue.numClaimed());
+
+            // one ok line per image, each with an output image of its own
+            final List<String> processed = new ArrayList<>();
+            final Set<String> outputs = new HashSet<>();
+            for (String unit : done) {
+                for (String result : Files.readAllLines(queueDir.resolve(WorkQueue.RESULTS).resolve(unit))) {
+                    final String[] fields = result.split("\t");
+                    assertEquals(result, 3, fields.length);
+                    assertEquals(result, "ok", fields[1]);
+                    assertTrue("Missing output " + fields[2], new File(fields[2]).isFile());
+                    assertTrue("Output written twice " + fields[2], outputs.add(fields[2]));
+                    processed.add(fields[0]);
+                }
+            }
+            Collections.sort(processed);
+            Collections.sort(images);
+            assertEquals(images, processed);
+        } finally {
+            for (Child child : children) {
+                child.process.destroyForcibly();
+            }
+            deleteRecursively(dir);
+        }
+    }
+
+    private static List<String> listNames(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
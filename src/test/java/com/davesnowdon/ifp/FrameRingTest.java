@@ -0,0 +1,111 @@
+package com.davesnowdon.ifp;
+
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test of the handoff between a producer and a consumer thread. Every pixel of
+ * each frame is set to the frame's sequence number, so a frame overwritten while it
+ * was being taken shows up as a mixture of values. The consumer pauses now and then
+ * so that the ring fills up and the producer has to drop or wait.
+ */
+public class FrameRingTest {
+    private static final int NUM_FRAMES = 1500;
+
+    private static final int CAPACITY = 3;
+
+    // large enough that the producer often runs while a frame is being copied, even with a single core
+    private static final Size FRAME_SIZE = new Size(1024, 1024);
+
+    private static final int PAUSE_EVERY = 500;
+
+    private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    @BeforeClass
+    public static void setUp() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void overwriteOldestDeliversWholeFramesInOrder() throws Exception {
+        final FrameRing ring = stress(FrameRing.Policy.OVERWRITE_OLDEST);
+        assertTrue("Consumer pauses should have made the producer drop frames", ring.getNumDropped() > 0);
+    }
+
+    @Test
+    public void blockDeliversEveryFrame() throws Exception {
+        final FrameRing ring = stress(FrameRing.Policy.BLOCK);
+        assertEquals(0, ring.getNumDropped());
+        assertEquals(NUM_FRAMES, ring.getNumTaken());
+    }
+
+    /**
+     * Publish NUM_FRAMES frames from a producer thread while taking them on this thread,
+     * checking that every frame taken is whole and that frames arrive in order (with
+     * no gaps unless the policy drops frames)
+     */
+    private static FrameRing stress(FrameRing.Policy policy) throws Exception {
+        final FrameRing ring = new FrameRing(CAPACITY, FRAME_SIZE, CvType.CV_32SC1, policy);
+        final AtomicReference<Throwable> producerFailure = new AtomicReference<>();
+        final Thread producer = new Thread(() -> {
+            try {
+                for (int sequence = 0; sequence < NUM_FRAMES; ++sequence) {
+                    ring.acquire().setTo(new Scalar(sequence));
+                    ring.publish();
+                }
+            } catch (Throwable t) {
+                producerFailure.set(t);
+            } finally {
+                ring.close();
+            }
+        }, "producer");
+        producer.start();
+
+        final Mat frame = ring.newFrame();
+        final int[] pixels = new int[(int) FRAME_SIZE.area()];
+        long numTaken = 0;
+        int last = -1;
+        while (ring.take(frame)) {
+            ++numTaken;
+            frame.get(0, 0, pixels);
+            final int sequence = pixels[0];
+            for (int pixel : pixels) {
+                if (pixel != sequence) {
+                    throw new AssertionError(policy + ": torn frame, holds both " + sequence + " and " + pixel);
+                }
+            }
+            assertTrue(policy + ": frame " + sequence + " taken after " + last, sequence > last);
+            if (FrameRing.Policy.BLOCK == policy) {
+                assertEquals(policy + ": frame skipped", last + 1, sequence);
+            }
+            last = sequence;
+
+            if (0 == numTaken % PAUSE_EVERY) {
+                LockSupport.parkNanos(PAUSE_NANOS);
+            }
+        }
+        producer.join();
+
+        assertTrue(policy + ": producer failed " + producerFailure.get(), null == producerFailure.get());
+        assertEquals(policy + ": last frame not delivered", NUM_FRAMES - 1, last);
+        assertEquals(NUM_FRAMES, ring.getNumPublished());
+        assertEquals(numTaken, ring.getNumTaken());
+        assertEquals(policy + ": published != taken + dropped",
+                ring.getNumPublished(), ring.getNumTaken() + ring.getNumDropped());
+        assertEquals(0, ring.depth());
+        return ring;
+    }
+}
@@ -0,0 +1,94 @@
+package com.davesnowdon.ifp;
+
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs each of Main's commands on the test images and checks the results (objects
+ * found, blob position, line position and orientation, quadrilateral corners, the
+ * output image and, for streams, the objects found in each frame and the frames
+ * skipped) against src/test/resources/regression/golden.properties.
+ */
+public class GoldenRegressionTest {
+    private static Properties golden;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        golden = RegressionCases.loadGolden();
+    }
+
+    @Test
+    public void findFaces() throws Exception {
+        check("faces-nao2");
+    }
+
+    @Test
+    public void classifierSingleObject() throws Exception {
+        check("classifier-nao1");
+    }
+
+    @Test
+    public void classifierMultipleObjects() throws Exception {
+        check("classifier-nao2");
+    }
+
+    @Test
+    public void classifierWithColourProposals() throws Exception {
+        check("proposals-nao1");
+    }
+
+    @Test
+    public void findBlob() throws Exception {
+        check("blob");
+    }
+
+    @Test
+    public void findLine() throws Exception {
+        check("line");
+    }
+
+    @Test
+    public void shapes() throws Exception {
+        check("shapes-money");
+    }
+
+    @Test
+    public void blur() throws Exception {
+        check("blur-money");
+    }
+
+    @Test
+    public void show() throws Exception {
+        check("show-money");
+    }
+
+    @Test
+    public void streamWithGate() throws Exception {
+        check("stream-gate");
+    }
+
+    @Test
+    public void streamThroughRing() throws Exception {
+        check("stream-ring");
+    }
+
+    @Test
+    public void streamWithLatencyBudget() throws Exception {
+        check("stream-budget");
+    }
+
+    private static void check(String name) throws Exception {
+        final RegressionCases.Case c = RegressionCases.get(name);
+        final List<String> failures = RegressionCases.compare(c, RegressionCases.results(c), golden);
+        assertTrue(name + ":\n  " + String.join("\n  ", failures), failures.isEmpty());
+    }
+}
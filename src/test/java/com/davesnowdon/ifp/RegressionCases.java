@@ -0,0 +1,626 @@
+package com.davesnowdon.ifp;
+
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The cases checked by the regression tests, each one of Main's single image commands
+ * run on one of the test images or the stream command run over a directory of frames
+ * made from them, and the code to measure them.
+ *
+ * Also a command line tool, used by ThroughputRegressionTest to measure a single case
+ * in a JVM of its own (so that the peak memory belongs to that command alone) and to
+ * record new golden values and baselines after an intentional change or on a new
+ * reference machine:
+ *
+ *   RegressionCases measure CASE ROUNDS ITERATIONS
+ *   RegressionCases record [ROUNDS ITERATIONS]
+ */
+public class RegressionCases {
+    public static final String DIRECTORY_PROPERTY = "regression.directory";
+
+    public static final String DEFAULT_DIRECTORY = "src/test/resources/regression";
+
+    public static final String GOLDEN_FILE = "golden.properties";
+
+    public static final String BASELINE_FILE = "baseline.properties";
+
+    public static final int DEFAULT_ROUNDS = 7;
+
+    public static final int DEFAULT_ITERATIONS = 5;
+
+    private static final String NAO_XML = "/nao_cascade.xml";
+
+    private static final String NAO_LOW = "95,80,40";
+
+    private static final String NAO_HIGH = "130,255,255";
+
+    private static final Pattern FRAME_RESULT = Pattern.compile("(.+): (\\d+) objects found");
+
+    private static final Pattern GATE_REPORT = Pattern.compile(".*processed = (\\d+), skipped = (\\d+),.*");
+
+    private static final Pattern RING_REPORT = Pattern.compile("ring .*published = (\\d+), taken = (\\d+), dropped = (\\d+),.*");
+
+    private static final Pattern FINAL_PARAMETERS = Pattern.compile(".*final parameters: (.*)");
+
+    /**
+     * Tolerances used when recording new golden values
+     */
+    private static final String[][] DEFAULT_TOLERANCES = {
+            {"tolerance.pixels", "2.0"},
+            {"tolerance.offset", "0.01"},
+            {"tolerance.orientation", "0.01"},
+            {"tolerance.mean", "0.5"}
+    };
+
+    /**
+     * One command run on one image
+     */
+    public static class Case {
+        private final String name;
+
+        private final String command;
+
+        private final String[] args;
+
+        Case(String name, String command, String image, String... extraArgs) {
+            this(name, command, Paths.get(resource("/" + image)), extraArgs);
+        }
+
+        private Case(String name, String command, Path input, String... extraArgs) {
+            this.name = name;
+            this.command = command;
+            final List<String> all = new ArrayList<>(Arrays.asList("--command", command, "--image", input.toString()));
+            all.addAll(Arrays.asList(extraArgs));
+            this.args = all.toArray(new String[all.size()]);
+        }
+
+        /**
+         * The stream command over the frames in STREAM_FRAMES
+         */
+        static Case stream(String name, String... extraArgs) {
+            return new Case(name, "stream", STREAM_FRAMES, extraArgs);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public CommandLine getLine() throws ParseException {
+            return new DefaultParser().parse(Main.createOptions(), args);
+        }
+
+        /**
+         * Read the case's image as the command would
+         */
+        public Mat readInput() throws ParseException {
+            final CommandLine line = getLine();
+            return Main.readInput(line.getOptionValue(Main.OPTION_IMAGE), command, line);
+        }
+    }
+
+    /**
+     * Directory of frames for the stream cases, runs of the same image which the gate
+     * should skip, the last one long enough for the gate to reach its maximum staleness
+     */
+    private static final Path STREAM_FRAMES = streamFrames(
+            "image-with-nao2.jpg", 6,
+            "image-with-nao1.jpg", 2,
+            "image-with-nao2.jpg", 12);
+
+    public static final List<Case> CASES = Collections.unmodifiableList(Arrays.asList(
+            new Case("faces-nao2", "find-faces", "image-with-nao2.jpg"),
+            new Case("classifier-nao1", "classifier", "image-with-nao1.jpg", "--classifier", resource(NAO_XML)),
+            new Case("classifier-nao2", "classifier", "image-with-nao2.jpg", "--classifier", resource(NAO_XML)),
+            new Case("proposals-nao1", "classifier", "image-with-nao1.jpg", "--classifier", resource(NAO_XML),
+                    "--low", NAO_LOW, "--high", NAO_HIGH),
+            new Case("blob", "find-blob", "contains-blue-blob.jpg", "--low", "84,80,80", "--high", "104,255,255"),
+            new Case("line", "find-line", "image-with-line.jpg"),
+            new Case("shapes-money", "shapes", "money.jpg"),
+            new Case("blur-money", "blur", "money.jpg", "--kernel-size", "15"),
+            new Case("show-money", "show", "money.jpg"),
+            Case.stream("stream-gate"),
+            Case.stream("stream-ring", "--ring-capacity", "3", "--ring-policy", "block"),
+            // every frame takes longer than the budget so the parameters get coarser on any machine
+            Case.stream("stream-budget", "--max-staleness", "0", "--latency-budget", "0.001")));
+
+    public static Case get(String name) {
+        return CASES.stream()
+                .filter(c -> c.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No such case: " + name));
+    }
+
+    /**
+     * The values from a case that are compared against the golden values, keyed by
+     * case name and kind of value. Every single image case includes the size and mean
+     * of the command's output image so that what the command draws is checked too.
+     * Stream cases check the objects found in each frame and the counts reported by
+     * the gate and ring.
+     *
+     * @param c
+     * @return
+     */
+    public static Map<String, String> results(Case c) throws ParseException {
+        final Map<String, String> results = new TreeMap<>();
+        final CommandLine line = c.getLine();
+        final PrintStream stdout = suppressOutput();
+        try {
+            switch (c.getCommand()) {
+                case "classifier":
+                case "find-faces": {
+                    final List<Rect> found = new ArrayList<>(Main.findObjects(c.readInput(), c.getCommand(), line));
+                    found.sort(Comparator.comparingInt((Rect r) -> r.x).thenComparingInt(r -> r.y));
+                    results.put(c.getName() + ".count", Integer.toString(found.size()));
+                    results.put(c.getName() + ".rects", found.stream()
+                            .map(r -> r.x + "," + r.y + "," + r.width + "," + r.height)
+                            .collect(Collectors.joining(";")));
+                    break;
+                }
+
+                case "find-blob": {
+                    final Optional<Blob> blob = ImageOps.findBlob(c.readInput(),
+                            Main.parseHsv(line, Main.OPTION_LOW), Main.parseHsv(line, Main.OPTION_HIGH));
+                    if (blob.isPresent()) {
+                        final Circle circle = blob.get().getEnclosedBy();
+                        results.put(c.getName() + ".centre.x", format(circle.getCentre().x));
+                        results.put(c.getName() + ".centre.y", format(circle.getCentre().y));
+                        results.put(c.getName() + ".radius", format(circle.getRadius()));
+                    } else {
+                        results.put(c.getName() + ".found", "false");
+                    }
+                    break;
+                }
+
+                case "find-line": {
+                    final Optional<VerticalLine> found = Main.findVerticalLine(c.readInput(), line);
+                    if (found.isPresent()) {
+                        results.put(c.getName() + ".offset", format(found.get().getOffset()));
+                        results.put(c.getName() + ".orientation", format(found.get().getOrientation()));
+                    } else {
+                        results.put(c.getName() + ".found", "false");
+                    }
+                    break;
+                }
+
+                case "shapes": {
+                    final Optional<MatOfPoint> quadrilateral = Main.findQuadrilateral(c.readInput());
+                    if (quadrilateral.isPresent()) {
+                        final List<Point> corners = Main.approximatePolygon(quadrilateral.get()).toList();
+                        results.put(c.getName() + ".corners", corners.stream()
+                                .map(p -> format(p.x) + "," + format(p.y))
+                                .collect(Collectors.joining(";")));
+                    } else {
+                        results.put(c.getName() + ".found", "false");
+                    }
+                    break;
+                }
+
+                case "stream": {
+                    streamResults(c, line, results);
+                    return results;
+                }
+
+                default:
+                    break;
+            }
+
+            final Mat output = Main.runCommand(c.getCommand(), c.readInput(), line);
+            if (null == output) {
+                results.put(c.getName() + ".size", "none");
+            } else {
+                results.put(c.getName() + ".size", output.cols() + "x" + output.rows());
+                final double[] channelMeans = Core.mean(output).val;
+                double mean = 0;
+                for (int i = 0; i < output.channels(); ++i) {
+                    mean += channelMeans[i];
+                }
+                results.put(c.getName() + ".mean", format(mean / output.channels()));
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        return results;
+    }
+
+    /**
+     * Run the stream command and pick the per frame object counts and the gate, ring
+     * and adaptive detector reports out of what it prints
+     *
+     * @param c
+     * @param line
+     * @param results
+     */
+    private static void streamResults(Case c, CommandLine line, Map<String, String> results) throws ParseException {
+        final List<String> counts = new ArrayList<>();
+        for (String outputLine : captureStream(line)) {
+            final Matcher frame = FRAME_RESULT.matcher(outputLine);
+            final Matcher gate = GATE_REPORT.matcher(outputLine);
+            final Matcher ring = RING_REPORT.matcher(outputLine);
+            final Matcher parameters = FINAL_PARAMETERS.matcher(outputLine);
+            if (frame.matches()) {
+                counts.add(frame.group(2));
+            } else if (ring.matches()) {
+                results.put(c.getName() + ".published", ring.group(1));
+                results.put(c.getName() + ".taken", ring.group(2));
+                results.put(c.getName() + ".dropped", ring.group(3));
+            } else if (gate.matches()) {
+                results.put(c.getName() + ".processed", gate.group(1));
+                results.put(c.getName() + ".skipped", gate.group(2));
+            }
+            if (parameters.matches()) {
+                results.put(c.getName() + ".parameters", parameters.group(1));
+            }
+        }
+        results.put(c.getName() + ".counts", String.join(",", counts));
+    }
+
+    /**
+     * Lines printed by the stream command, which is the only way it reports its results
+     */
+    private static List<String> captureStream(CommandLine line) throws ParseException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream previous = System.out;
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            Main.commandStream(line.getOptionValue(Main.OPTION_IMAGE), line);
+        } finally {
+            System.setOut(previous);
+        }
+        return Arrays.asList(bytes.toString().split("\\R"));
+    }
+
+    /**
+     * Compare the results of a case with the golden values, returning a description
+     * of each mismatch
+     *
+     * @param c
+     * @param results
+     * @param golden
+     * @return
+     */
+    public static List<String> compare(Case c, Map<String, String> results, Properties golden) {
+        final List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            final String want = golden.getProperty(result.getKey());
+            if (null == want) {
+                failures.add(result.getKey() + ": no golden value, got " + result.getValue());
+            } else if (!matches(result.getKey(), want, result.getValue(), golden)) {
+                failures.add(result.getKey() + ": expected " + want + " got " + result.getValue());
+            }
+        }
+        for (String key : golden.stringPropertyNames()) {
+            if (key.startsWith(c.getName() + ".") && !results.containsKey(key)) {
+                failures.add(key + ": expected " + golden.getProperty(key) + " but not produced");
+            }
+        }
+        Collections.sort(failures);
+        return failures;
+    }
+
+    /**
+     * Median images per second over a number of rounds (after a warm up run) with the
+     * command's own output suppressed. The median is much less affected than the mean
+     * by other activity on the machine. For stream cases every frame counts as an
+     * image and each iteration runs over all the frames.
+     *
+     * @param c
+     * @param rounds
+     * @param iterations number of images per round
+     * @return
+     */
+    public static double measureThroughput(Case c, int rounds, int iterations) throws ParseException {
+        final CommandLine line = c.getLine();
+        final boolean stream = "stream".equals(c.getCommand());
+        final int imagesPerIteration = stream ? new File(line.getOptionValue(Main.OPTION_IMAGE)).list().length : 1;
+        final PrintStream stdout = suppressOutput();
+        try {
+            runOnce(c, line, stream);
+            final double[] rates = new double[rounds];
+            for (int round = 0; round < rounds; ++round) {
+                final long start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i) {
+                    runOnce(c, line, stream);
+                }
+                rates[round] = iterations * imagesPerIteration / ((System.nanoTime() - start) / 1e9);
+            }
+            Arrays.sort(rates);
+            return rates[rounds / 2];
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    private static void runOnce(Case c, CommandLine line, boolean stream) throws ParseException {
+        if (stream) {
+            Main.commandStream(line.getOptionValue(Main.OPTION_IMAGE), line);
+        } else {
+            Main.runCommand(c.getCommand(), c.readInput(), line);
+        }
+    }
+
+    /**
+     * Throughput and peak memory of one case
+     */
+    public static class Measurement {
+        private final double imagesPerSecond;
+
+        private final double peakMemoryMb;
+
+        public Measurement(double imagesPerSecond, double peakMemoryMb) {
+            this.imagesPerSecond = imagesPerSecond;
+            this.peakMemoryMb = peakMemoryMb;
+        }
+
+        public double getImagesPerSecond() {
+            return imagesPerSecond;
+        }
+
+        /**
+         * Peak resident memory of the JVM which ran the case, or a negative value if
+         * it could not be measured
+         */
+        public double getPeakMemoryMb() {
+            return peakMemoryMb;
+        }
+    }
+
+    /**
+     * Measure a case in a new JVM with the same classpath, so that nothing allocated by
+     * other cases counts towards its peak memory
+     *
+     * @param c
+     * @param rounds
+     * @param iterations
+     * @return
+     */
+    public static Measurement measureInNewJvm(Case c, int rounds, int iterations) throws IOException, InterruptedException {
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final Process process = new ProcessBuilder(java,
+                "-Djava.awt.headless=true",
+                "-Djava.library.path=" + System.getProperty("java.library.path", ""),
+                "-cp", System.getProperty("java.class.path"),
+                RegressionCases.class.getName(), "measure", c.getName(),
+                Integer.toString(rounds), Integer.toString(iterations))
+                .redirectErrorStream(true)
+                .start();
+
+        // the measurement is the last line, anything before it is diagnostic
+        String last = "";
+        final List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String outputLine;
+            while (null != (outputLine = reader.readLine())) {
+                output.add(outputLine);
+                last = outputLine;
+            }
+        }
+        if ((0 != process.waitFor()) || !last.startsWith("measurement ")) {
+            throw new IOException("Measuring " + c.getName() + " failed:\n" + String.join("\n", output));
+        }
+        final String[] values = last.split(" ");
+        return new Measurement(Double.parseDouble(values[1]), Double.parseDouble(values[2]));
+    }
+
+    /**
+     * Peak resident memory (VmHWM) of this process in MB, which includes OpenCV's native
+     * allocations, or -1 if it is not available
+     */
+    public static double peakMemoryMb() {
+        try {
+            for (String statusLine : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (statusLine.startsWith("VmHWM:")) {
+                    return Long.parseLong(statusLine.replaceAll("[^0-9]", "")) / 1024.0;
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    public static boolean matches(String key, String want, String got, Properties golden) {
+        final String kind = key.substring(key.indexOf('.') + 1);
+        switch (kind) {
+            case "centre.x":
+            case "centre.y":
+            case "radius":
+                return within(want, got, golden.getProperty("tolerance.pixels"));
+
+            case "offset":
+                return within(want, got, golden.getProperty("tolerance.offset"));
+
+            case "orientation":
+                return within(want, got, golden.getProperty("tolerance.orientation"));
+
+            case "mean":
+                return within(want, got, golden.getProperty("tolerance.mean"));
+
+            case "corners":
+            case "rects": {
+                final String[] wantValues = want.isEmpty() ? new String[0] : want.split("[;,]");
+                final String[] gotValues = got.isEmpty() ? new String[0] : got.split("[;,]");
+                if (wantValues.length != gotValues.length) {
+                    return false;
+                }
+                for (int i = 0; i < wantValues.length; ++i) {
+                    if (!within(wantValues[i], gotValues[i], golden.getProperty("tolerance.pixels"))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            default:
+                return want.equals(got);
+        }
+    }
+
+    /**
+     * Golden values and tolerances from the test classpath
+     */
+    public static Properties loadGolden() throws IOException {
+        return loadResource("/regression/" + GOLDEN_FILE);
+    }
+
+    /**
+     * Throughput and memory baselines from the test classpath
+     */
+    public static Properties loadBaseline() throws IOException {
+        return loadResource("/regression/" + BASELINE_FILE);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        if ((4 == argv.length) && "measure".equals(argv[0])) {
+            final double imagesPerSecond = measureThroughput(get(argv[1]), Integer.parseInt(argv[2]), Integer.parseInt(argv[3]));
+            System.out.println(String.format("measurement %.2f %.1f", imagesPerSecond, peakMemoryMb()));
+        } else if ((argv.length > 0) && "record".equals(argv[0])) {
+            final int rounds = (argv.length > 1) ? Integer.parseInt(argv[1]) : DEFAULT_ROUNDS;
+            final int iterations = (argv.length > 2) ? Integer.parseInt(argv[2]) : DEFAULT_ITERATIONS;
+            record(Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)), rounds, iterations);
+        } else {
+            System.err.println("Usage: RegressionCases measure CASE ROUNDS ITERATIONS | record [ROUNDS ITERATIONS]");
+            System.exit(1);
+        }
+    }
+
+    private static void record(Path directory, int rounds, int iterations) throws Exception {
+        final Properties golden = new Properties();
+        for (String[] tolerance : DEFAULT_TOLERANCES) {
+            golden.setProperty(tolerance[0], tolerance[1]);
+        }
+        final Properties baseline = new Properties();
+        baseline.setProperty("rounds", Integer.toString(rounds));
+        baseline.setProperty("iterations", Integer.toString(iterations));
+
+        for (Case c : CASES) {
+            results(c).forEach(golden::setProperty);
+            final Measurement measurement = measureInNewJvm(c, rounds, iterations);
+            baseline.setProperty(c.getName() + ".imagesPerSecond", String.format("%.2f", measurement.getImagesPerSecond()));
+            baseline.setProperty(c.getName() + ".peakMemoryMb", String.format("%.1f", measurement.getPeakMemoryMb()));
+            System.out.println(String.format("%-18s %10.2f images/s %10.1f MB",
+                    c.getName(), measurement.getImagesPerSecond(), measurement.getPeakMemoryMb()));
+        }
+
+        Files.createDirectories(directory);
+        store(golden, directory.resolve(GOLDEN_FILE), "Expected results for GoldenRegressionTest, regenerate with RegressionCases record");
+        store(baseline, directory.resolve(BASELINE_FILE), "Baseline for ThroughputRegressionTest, regenerate with RegressionCases record");
+        System.out.println("Recorded golden values and baseline in " + directory);
+    }
+
+    /**
+     * Copy test images into a temporary directory as numbered frames, given pairs of
+     * image name and number of copies. The directory is removed when the JVM exits.
+     */
+    private static Path streamFrames(Object... runs) {
+        try {
+            final Path directory = Files.createTempDirectory("regression-frames");
+            directory.toFile().deleteOnExit();
+            int frame = 0;
+            for (int i = 0; i < runs.length; i += 2) {
+                final Path image = Paths.get(resource("/" + runs[i]));
+                for (int copy = 0; copy < (Integer) runs[i + 1]; ++copy) {
+                    final Path target = directory.resolve(String.format("frame%03d.jpg", frame++));
+                    Files.copy(image, target);
+                    target.toFile().deleteOnExit();
+                }
+            }
+            return directory;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create stream frames", e);
+        }
+    }
+
+    /**
+     * Filename of a resource on the test classpath
+     */
+    private static String resource(String name) {
+        final URL url = RegressionCases.class.getResource(name);
+        if (null == url) {
+            throw new IllegalStateException("Missing test resource " + name);
+        }
+        try {
+            return new File(url.toURI()).getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Bad resource URL " + url, e);
+        }
+    }
+
+    private static Properties loadResource(String name) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream in = RegressionCases.class.getResourceAsStream(name)) {
+            if (null == in) {
+                throw new IOException("Missing test resource " + name);
+            }
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Write properties sorted by key so that the files diff nicely
+     */
+    private static void store(Properties properties, Path path, String comment) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add("# " + comment);
+        new TreeMap<>(properties).forEach((key, value) -> lines.add(key + "=" + value));
+        Files.write(path, lines);
+    }
+
+    private static PrintStream suppressOutput() {
+        final PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        return stdout;
+    }
+
+    private static boolean within(String want, String got, String tolerance) {
+        return Math.abs(Double.parseDouble(want) - Double.parseDouble(got)) <= Double.parseDouble(tolerance);
+    }
+
+    private static String format(double value) {
+        return String.format("%.4f", value);
+    }
+}
@@ -0,0 +1,71 @@
+package com.davesnowdon.ifp;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that no command has got slower or uses more memory than recorded in
+ * src/test/resources/regression/baseline.properties. Each case is run in a JVM of its
+ * own so that the peak resident memory belongs to that command alone.
+ *
+ * Timings depend on the machine, so this is excluded from the normal test run and
+ * only meaningful on the machine the baseline was recorded on. Run it with
+ *
+ *   gradle performanceTest [-PmaxSlowdown=PERCENT] [-PmaxMemoryGrowth=PERCENT]
+ *
+ * Each case is run for the same number of rounds and iterations as when the baseline
+ * was recorded unless regression.rounds or regression.iterations are set, in which
+ * case peak memory isn't checked since it depends on how long the case runs for. The
+ * default allowed slowdown is well above the run to run variation of the median
+ * throughput seen on a busy shared machine (up to about 20%).
+ */
+public class ThroughputRegressionTest {
+    public static final double DEFAULT_MAX_SLOWDOWN_PERCENT = 50.0;
+
+    public static final double DEFAULT_MAX_MEMORY_GROWTH_PERCENT = 25.0;
+
+    @Test
+    public void throughputAndMemory() throws Exception {
+        final double maxSlowdown = Double.parseDouble(System.getProperty("regression.maxSlowdown",
+                Double.toString(DEFAULT_MAX_SLOWDOWN_PERCENT)));
+        final double maxMemoryGrowth = Double.parseDouble(System.getProperty("regression.maxMemoryGrowth",
+                Double.toString(DEFAULT_MAX_MEMORY_GROWTH_PERCENT)));
+        final Properties baseline = RegressionCases.loadBaseline();
+        final int baselineRounds = Integer.parseInt(baseline.getProperty("rounds", Integer.toString(RegressionCases.DEFAULT_ROUNDS)));
+        final int baselineIterations = Integer.parseInt(baseline.getProperty("iterations", Integer.toString(RegressionCases.DEFAULT_ITERATIONS)));
+        final int rounds = Integer.getInteger("regression.rounds", baselineRounds);
+        final int iterations = Integer.getInteger("regression.iterations", baselineIterations);
+        // garbage Mats are only freed when collected, so peak memory depends on how long each case runs for
+        final boolean checkMemory = (rounds == baselineRounds) && (iterations == baselineIterations);
+        if (!checkMemory) {
+            System.out.println("Not checking peak memory, baseline was recorded with " + baselineRounds
+                    + " rounds of " + baselineIterations + " iterations");
+        }
+
+        final List<String> failures = new ArrayList<>();
+        System.out.println(String.format("%-18s %10s %10s %12s %12s", "case", "images/s", "baseline", "peak MB", "baseline"));
+        for (RegressionCases.Case c : RegressionCases.CASES) {
+            final RegressionCases.Measurement measurement = RegressionCases.measureInNewJvm(c, rounds, iterations);
+            final double expectedRate = Double.parseDouble(baseline.getProperty(c.getName() + ".imagesPerSecond", "0"));
+            final double expectedMemory = Double.parseDouble(baseline.getProperty(c.getName() + ".peakMemoryMb", "-1"));
+            System.out.println(String.format("%-18s %10.2f %10.2f %12.1f %12.1f", c.getName(),
+                    measurement.getImagesPerSecond(), expectedRate, measurement.getPeakMemoryMb(), expectedMemory));
+
+            if (measurement.getImagesPerSecond() < expectedRate * (1.0 - maxSlowdown / 100.0)) {
+                failures.add(String.format("%s: %.2f images/s is more than %.0f%% below baseline of %.2f",
+                        c.getName(), measurement.getImagesPerSecond(), maxSlowdown, expectedRate));
+            }
+            if (checkMemory && (expectedMemory > 0) && (measurement.getPeakMemoryMb() > expectedMemory * (1.0 + maxMemoryGrowth / 100.0))) {
+                failures.add(String.format("%s: peak memory %.1f MB is more than %.0f%% above baseline of %.1f MB",
+                        c.getName(), measurement.getPeakMemoryMb(), maxMemoryGrowth, expectedMemory));
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+}